@@ -15,6 +15,7 @@
 package com.migrantdigitsapplication.digits;
 
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -24,11 +25,11 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.firebase.digitsmigrationhelpers.MigrationResult;
 import com.firebase.ui.auth.AuthUI;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
-import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
 import java.util.ArrayList;
@@ -40,7 +41,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private static final int RC_SIGN_IN = 123;
     private ProgressDialog mProgressDialog;
     private Button signinInButton;
-    private Task<Void> migratorTask;
+    private Task<MigrationResult> migratorTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,14 +57,21 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             mProgressDialog.setIndeterminate(true);
             mProgressDialog.setTitle(getString(R.string.signing_in));
             mProgressDialog.setMessage(getString(R.string.looking_for_digits_session));
+            mProgressDialog.setCancelable(true);
+            mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    MigrantDigitsApplication.get(MainActivity.this).stopWaitingForMigration();
+                }
+            });
             mProgressDialog.show();
         }
 
         migratorTask.addOnSuccessListener(this,
-                new OnSuccessListener<Void>() {
+                new OnSuccessListener<MigrationResult>() {
                     @Override
-                    public void onSuccess(Void authResult) {
-                        FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
+                    public void onSuccess(MigrationResult result) {
+                        FirebaseUser u = result.getUser();
 
                         if (u != null) {
                             // Either a user was already logged in or token exchange succeeded
@@ -72,8 +80,13 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                             mProgressDialog.setMessage("Logged in!");
                             mProgressDialog.dismiss();
                             startLoggedInUX();
+                        } else if (result.getStatus() == MigrationResult.Status.PENDING) {
+                            // Still exchanging, let the user sign in another way meanwhile.
+                            Log.d("MyApp", "Digits migration still running");
+                            mProgressDialog.dismiss();
                         } else {
-                            // No tokens were found to exchange and no firebase user logged in.
+                            // No tokens were exchanged and no firebase user logged in.
+                            Log.d("MyApp", "Digits migration: " + result.getStatus());
                             mProgressDialog.dismiss();
                         }
                     }
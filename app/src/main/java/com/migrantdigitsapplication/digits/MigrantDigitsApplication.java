@@ -2,28 +2,45 @@ package com.migrantdigitsapplication.digits;
 
 import android.app.Application;
 import android.content.Context;
+import android.support.v4.os.CancellationSignal;
 
 import com.google.android.gms.tasks.Task;
 
 import com.firebase.digitsmigrationhelpers.AuthMigrator;
+import com.firebase.digitsmigrationhelpers.MigrationResult;
+import com.firebase.digitsmigrationhelpers.MigrationSchedule;
 import migration.auth.digits.google.com.migrantdigitsapplication.BuildConfig;
 
 public class MigrantDigitsApplication extends Application {
-    private Task<Void> digitsMigratorTask;
+    private final CancellationSignal migrationWait = new CancellationSignal();
+    private Task<MigrationResult> digitsMigratorTask;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        // Name the migration phases in systrace and Perfetto captures of debug builds.
+        AuthMigrator.setTracingEnabled(BuildConfig.DEBUG);
+        // Let the first activity draw before the migration reads from disk.
+        AuthMigrator.getInstance().setMigrationSchedule(MigrationSchedule.AFTER_FIRST_FRAME);
         // Does not block calling thread
-        // Kick off migration asap.
-        digitsMigratorTask = AuthMigrator.getInstance().migrate(!BuildConfig.DEBUG);
+        // Kick off migration asap. The task resolves to PENDING if the network hangs, so the
+        // UI never waits longer than exchanges usually take on this device.
+        digitsMigratorTask = AuthMigrator.getInstance().migrateForResult(!BuildConfig.DEBUG,
+                migrationWait);
     }
 
     public static MigrantDigitsApplication get(Context context) {
         return (MigrantDigitsApplication) context.getApplicationContext();
     }
 
-    public Task<Void> getDigitsMigratorTask() {
+    public Task<MigrationResult> getDigitsMigratorTask() {
         return digitsMigratorTask;
     }
+
+    /**
+     * Fails the migrator task right away, the migration itself goes on in the background.
+     */
+    public void stopWaitingForMigration() {
+        migrationWait.cancel();
+    }
 }
\ No newline at end of file
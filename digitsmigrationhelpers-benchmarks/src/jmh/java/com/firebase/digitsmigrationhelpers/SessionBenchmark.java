@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.UnsignedJwtWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the steps that turn a stored Digits session into the token sent to the exchange
+ * endpoint. Run with {@code ./gradlew :digitsmigrationhelpers-benchmarks:jmh}, the gc profiler
+ * reports allocations per operation next to each score.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class SessionBenchmark {
+    private static final String CONSUMER_KEY = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+    private static final String CONSUMER_SECRET = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+    private static final String FABRIC_API_KEY = "0123456789abcdef0123456789abcdef01234567";
+
+    /**
+     * Session as written by the Digits SDK, see {@link #sessionJson(String)}.
+     */
+    @Param({"minimal", "full", "unicode", "large"})
+    public String session;
+
+    private String mJson;
+    private RedeemableDigitsSessionBuilder mBuilder;
+    private RedeemableDigitsSession mSession;
+    private UnsignedJwtWriter mJwtWriter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        mJson = sessionJson(session);
+        mBuilder = withAppKeys(RedeemableDigitsSessionBuilder.fromSessionJson(mJson));
+        mSession = mBuilder.build();
+        mJwtWriter = new UnsignedJwtWriter();
+    }
+
+    @Benchmark
+    public RedeemableDigitsSessionBuilder fromSessionJson() throws JSONException {
+        return RedeemableDigitsSessionBuilder.fromSessionJson(mJson);
+    }
+
+    /**
+     * The {@link JSONObject} fallback, for comparison with the streaming reader.
+     */
+    @Benchmark
+    public RedeemableDigitsSessionBuilder fromSessionJsonObject() throws JSONException {
+        return RedeemableDigitsSessionBuilder.fromSessionJsonObject(mJson);
+    }
+
+    @Benchmark
+    public RedeemableDigitsSession build() {
+        return mBuilder.build();
+    }
+
+    @Benchmark
+    public JSONObject getPayload() {
+        return mSession.getPayload();
+    }
+
+    /**
+     * The payload serialization that the {@link JSONObject} based JWT encoding starts with.
+     */
+    @Benchmark
+    public String getPayloadString() {
+        return mSession.getPayload().toString();
+    }
+
+    @Benchmark
+    public String getUnsignedJwt() {
+        return mJwtWriter.write(mSession);
+    }
+
+    @Benchmark
+    public String parseBuildEncode() throws JSONException {
+        return mJwtWriter.write(
+                withAppKeys(RedeemableDigitsSessionBuilder.fromSessionJson(mJson)).build());
+    }
+
+    private static RedeemableDigitsSessionBuilder withAppKeys(
+            RedeemableDigitsSessionBuilder builder) {
+        return builder.setConsumerKey(CONSUMER_KEY)
+                .setConsumerSecret(CONSUMER_SECRET)
+                .setFabricApiKey(FABRIC_API_KEY);
+    }
+
+    private static String sessionJson(String kind) {
+        switch (kind) {
+            case "minimal":
+                return "{}";
+            case "full":
+                return session("a@b.com", "+15551234567",
+                        "1234567890-AbCdEfGhIjKlMnOpQrStUvWxYz0123456789",
+                        "AbCdEfGhIjKlMnOpQrStUvWxYz0123456789AbCdEfGh", "");
+            case "unicode":
+                // Raw and escaped non-ASCII characters, plus escapes the encoder must keep.
+                return session("j\u00fcrgen.m\u00fcller@\u4f8b\u3048.jp", "+81 90-1234-5678",
+                        "1234567890-\\u00e9\\u00e8\\\"quoted\\\"\\/slash",
+                        "\ud83d\udd11-secret-\\u2028-\\t-\\\\", "");
+            case "large":
+                return session("a@b.com", "+15551234567", repeat("0123456789abcdef", 64),
+                        repeat("fedcba9876543210", 64), unknownFields(64));
+            default:
+                throw new IllegalArgumentException("Unknown session: " + kind);
+        }
+    }
+
+    private static String session(String email, String phoneNumber, String token,
+                                  String secret, String extraFields) {
+        return "{\"email\":{\"address\":\"" + email + "\",\"is_verified\":true},"
+                + "\"phone_number\":\"" + phoneNumber + "\","
+                + "\"auth_token\":{\"auth_type\":\"oauth1a\",\"auth_token\":{"
+                + "\"secret\":\"" + secret + "\",\"token\":\"" + token + "\","
+                + "\"created_at\":1493251200000}},"
+                + extraFields
+                + "\"id\":851234567890123456}";
+    }
+
+    /**
+     * Fields the parser has to skip, like those added by later versions of the Digits SDK.
+     */
+    private static String unknownFields(int count) {
+        StringBuilder fields = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            fields.append("\"unknown_").append(i).append("\":{\"values\":[")
+                    .append(i).append(",1.5e3,null,false,\"").append(repeat("x", i))
+                    .append("\"]},");
+        }
+        return fields.toString();
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder repeated = new StringBuilder(value.length() * count);
+        for (int i = 0; i < count; i++) {
+            repeated.append(value);
+        }
+        return repeated.toString();
+    }
+}
@@ -14,24 +14,28 @@
 
 package com.firebase.digitsmigrationhelpers;
 
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.text.TextUtils;
-import android.util.Log;
-
-import com.firebase.digitsmigrationhelpers.internal.ClearSessionContinuation;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.SessionJsonReader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 /**
  * Build a Digits session that can be exchanged for a user on the firebase SDK using the
- * {@link AuthMigrator}
+ * {@code AuthMigrator}
+ * <p>
+ * This class has no Android dependencies. org.json is provided by the platform on Android, plain
+ * JVM users need to add an implementation such as com.vaadin.external.google:android-json.
  */
 public class RedeemableDigitsSessionBuilder {
-    private static final String TAG = "Digits";
+    private static final Logger LOGGER = Logger.getLogger("Digits");
     private Long id;
     private String phoneNumber;
     private String email;
@@ -168,15 +172,14 @@ public class RedeemableDigitsSessionBuilder {
     }
 
     /**
-     * Build {@link ClearSessionContinuation.RedeemableDigitsSession} using the parameters provided
+     * Build {@link RedeemableDigitsSession} using the parameters provided
      *
      * We permit null auth token and secret as permissible but corrupt tokens. Once these are
-     * invalidated by the service, these are deleted from the client in
-     * {@link ClearSessionContinuation}
+     * invalidated by the service, these are deleted from the client by the {@code AuthMigrator}
 
      * @return redeemable digits session
      */
-    public ClearSessionContinuation.RedeemableDigitsSession build() {
+    public RedeemableDigitsSession build() {
         checkNotNull(authToken, "Auth Token cannot be null");
         checkNotNull(authTokenSecret, "Token Secret cannot be null");
 
@@ -195,12 +198,49 @@ public class RedeemableDigitsSessionBuilder {
                     "Contact support@fabric.io for assistance");
         }
 
-        return new ClearSessionContinuation.RedeemableDigitsSession(id, phoneNumber, email, isEmailVerified, authToken,
+        return new RedeemableDigitsSession(id, phoneNumber, email, isEmailVerified, authToken,
                 authTokenSecret, consumerKey, consumerSecret, fabricApiKey);
     }
 
-    @NonNull
-    static RedeemableDigitsSessionBuilder fromSessionJson(@NonNull String json) throws
+    /**
+     * Returns a builder with the same values, so that a parsed session can be kept around while
+     * copies of it are completed and built.
+     */
+    @Nonnull
+    RedeemableDigitsSessionBuilder copy() {
+        return new RedeemableDigitsSessionBuilder()
+                .setId(id)
+                .setPhoneNumber(phoneNumber)
+                .setEmail(email)
+                .setIsEmailVerified(isEmailVerified)
+                .setAuthToken(authToken)
+                .setAuthTokenSecret(authTokenSecret)
+                .setConsumerKey(consumerKey)
+                .setConsumerSecret(consumerSecret)
+                .setFabricApiKey(fabricApiKey);
+    }
+
+    @Nullable
+    Long getId() {
+        return id;
+    }
+
+    @Nullable
+    String getAuthToken() {
+        return authToken;
+    }
+
+    @Nonnull
+    static RedeemableDigitsSessionBuilder fromSessionJson(@Nonnull String json) throws
+            JSONException {
+        // Sessions written by the Digits SDK are strict json and take the streaming fast path.
+        RedeemableDigitsSessionBuilder builder = SessionJsonReader.read(json);
+        return builder != null ? builder : fromSessionJsonObject(json);
+    }
+
+    // Visible for testing
+    @Nonnull
+    static RedeemableDigitsSessionBuilder fromSessionJsonObject(@Nonnull String json) throws
             JSONException {
         RedeemableDigitsSessionBuilder builder = new RedeemableDigitsSessionBuilder();
 
@@ -249,16 +289,16 @@ public class RedeemableDigitsSessionBuilder {
     }
 
     private static <T> T checkNotNull(T reference, @Nullable Object errorMessage) {
-        if(reference instanceof String && TextUtils.isEmpty((String) reference)) {
-            Log.d(TAG, String.valueOf(errorMessage));
+        if(reference instanceof String && isEmpty((String) reference)) {
+            LOGGER.log(Level.FINE, String.valueOf(errorMessage));
         }else if (reference == null) {
-            Log.d(TAG, String.valueOf(errorMessage));
+            LOGGER.log(Level.FINE, String.valueOf(errorMessage));
         }
         return reference;
     }
 
     private static <T> T failNotNull(T reference, @Nullable Object errorMessage) {
-        if(reference instanceof String && TextUtils.isEmpty((String) reference)) {
+        if(reference instanceof String && isEmpty((String) reference)) {
             throw new IllegalArgumentException(String.valueOf(errorMessage));
         } else if (reference == null) {
             throw new IllegalArgumentException(String.valueOf(errorMessage));
@@ -266,6 +306,10 @@ public class RedeemableDigitsSessionBuilder {
         return reference;
     }
 
+    private static boolean isEmpty(@Nullable String value) {
+        return value == null || value.length() == 0;
+    }
+
     private static boolean isValidApiKeyFormat(String apiKey) {
         return apiKey != null
                 && apiKey.length() == 40
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers.internal;
+
+import android.support.annotation.RestrictTo;
+
+import com.firebase.digitsmigrationhelpers.RedeemableDigitsSessionBuilder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Single pass reader for the session json persisted by the Digits SDK.
+ *
+ * Only the fields needed for the exchange are materialized; everything else is skipped in place
+ * without building objects. The reader understands strict json only. Anything it is not certain
+ * to read exactly like {@link org.json.JSONObject} would (lenient syntax, type coercions,
+ * duplicate keys, ...) makes {@link #read(String)} return null so that the caller can fall back
+ * to the {@link org.json.JSONObject} based parser.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public final class SessionJsonReader {
+    private static final String EMAIL_KEY = "email";
+    private static final String PHONE_NUMBER_KEY = "phone_number";
+    private static final String EMAIL_ADDRESS_KEY = "address";
+    private static final String IS_EMAIL_ADDRESS_VERIFIED_KEY = "is_verified";
+    private static final String AUTH_TOKEN_KEY = "auth_token";
+    private static final String NESTED_TOKEN_KEY = "token";
+    private static final String NESTED_TOKEN_SECRET_KEY = "secret";
+    private static final String ID_KEY = "id";
+
+    // Bits used to detect duplicate keys, which org.json resolves by keeping the last value.
+    private static final int SEEN_ID = 1;
+    private static final int SEEN_PHONE_NUMBER = 1 << 1;
+    private static final int SEEN_EMAIL = 1 << 2;
+    private static final int SEEN_EMAIL_ADDRESS = 1 << 3;
+    private static final int SEEN_IS_EMAIL_VERIFIED = 1 << 4;
+    private static final int SEEN_AUTH_TOKEN = 1 << 5;
+    private static final int SEEN_NESTED_AUTH_TOKEN = 1 << 6;
+    private static final int SEEN_TOKEN = 1 << 7;
+    private static final int SEEN_TOKEN_SECRET = 1 << 8;
+
+    // Integers with at most this many digits always fit in a long.
+    private static final int MAX_SAFE_LONG_DIGITS = 18;
+
+    @Nonnull
+    private final String json;
+    private final int length;
+    private int pos;
+    private int seen;
+    private int nameStart;
+    private int nameEnd;
+
+    private Long id;
+    private String phoneNumber;
+    private String email;
+    private Boolean isEmailVerified;
+    private String authToken;
+    private String authTokenSecret;
+
+    private SessionJsonReader(@Nonnull String json) {
+        this.json = json;
+        this.length = json.length();
+    }
+
+    /**
+     * Reads a Digits session json.
+     *
+     * @return builder populated from the session, or null if the input has to be handled by the
+     * {@link org.json.JSONObject} based parser.
+     */
+    @Nullable
+    public static RedeemableDigitsSessionBuilder read(@Nonnull String json) {
+        SessionJsonReader reader = new SessionJsonReader(json);
+        try {
+            reader.readSession();
+        } catch (UnsupportedInputException e) {
+            return null;
+        }
+        return new RedeemableDigitsSessionBuilder()
+                .setId(reader.id)
+                .setPhoneNumber(reader.phoneNumber)
+                .setEmail(reader.email)
+                .setIsEmailVerified(reader.isEmailVerified)
+                .setAuthToken(reader.authToken)
+                .setAuthTokenSecret(reader.authTokenSecret);
+    }
+
+    private void readSession() throws UnsupportedInputException {
+        beginObject();
+        if (hasNextMember()) {
+            do {
+                nextName();
+                if (nameEquals(ID_KEY)) {
+                    markSeen(SEEN_ID);
+                    id = nextLong();
+                } else if (nameEquals(PHONE_NUMBER_KEY)) {
+                    markSeen(SEEN_PHONE_NUMBER);
+                    phoneNumber = nextString();
+                } else if (nameEquals(EMAIL_KEY)) {
+                    markSeen(SEEN_EMAIL);
+                    readEmail();
+                } else if (nameEquals(AUTH_TOKEN_KEY)) {
+                    markSeen(SEEN_AUTH_TOKEN);
+                    readAuthToken();
+                } else {
+                    skipValue();
+                }
+            } while (nextMember());
+        }
+        skipWhitespace();
+        if (pos != length) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+    }
+
+    private void readEmail() throws UnsupportedInputException {
+        beginObject();
+        if (!hasNextMember()) {
+            return;
+        }
+        do {
+            nextName();
+            if (nameEquals(EMAIL_ADDRESS_KEY)) {
+                markSeen(SEEN_EMAIL_ADDRESS);
+                email = nextString();
+            } else if (nameEquals(IS_EMAIL_ADDRESS_VERIFIED_KEY)) {
+                markSeen(SEEN_IS_EMAIL_VERIFIED);
+                isEmailVerified = nextBoolean();
+            } else {
+                skipValue();
+            }
+        } while (nextMember());
+    }
+
+    private void readAuthToken() throws UnsupportedInputException {
+        beginObject();
+        if (!hasNextMember()) {
+            return;
+        }
+        do {
+            nextName();
+            if (nameEquals(AUTH_TOKEN_KEY)) {
+                markSeen(SEEN_NESTED_AUTH_TOKEN);
+                readNestedAuthToken();
+            } else {
+                skipValue();
+            }
+        } while (nextMember());
+    }
+
+    private void readNestedAuthToken() throws UnsupportedInputException {
+        beginObject();
+        if (!hasNextMember()) {
+            return;
+        }
+        do {
+            nextName();
+            if (nameEquals(NESTED_TOKEN_KEY)) {
+                markSeen(SEEN_TOKEN);
+                authToken = nextString();
+            } else if (nameEquals(NESTED_TOKEN_SECRET_KEY)) {
+                markSeen(SEEN_TOKEN_SECRET);
+                authTokenSecret = nextString();
+            } else {
+                skipValue();
+            }
+        } while (nextMember());
+    }
+
+    private void markSeen(int bit) throws UnsupportedInputException {
+        if ((seen & bit) != 0) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+        seen |= bit;
+    }
+
+    private void beginObject() throws UnsupportedInputException {
+        expect('{');
+    }
+
+    /**
+     * Consumes the closing brace of an empty object.
+     *
+     * @return whether the object just opened has members
+     */
+    private boolean hasNextMember() throws UnsupportedInputException {
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the separator after a member value.
+     *
+     * @return true if another member follows, false if the object was closed
+     */
+    private boolean nextMember() throws UnsupportedInputException {
+        skipWhitespace();
+        char c = peek();
+        pos++;
+        if (c == ',') {
+            return true;
+        } else if (c == '}') {
+            return false;
+        }
+        throw UnsupportedInputException.INSTANCE;
+    }
+
+    /**
+     * Reads a member name and the following colon without allocating. The name is then matched
+     * with {@link #nameEquals(String)}. Names with escapes are left to org.json.
+     */
+    private void nextName() throws UnsupportedInputException {
+        skipWhitespace();
+        expect('"');
+        nameStart = pos;
+        char c;
+        while ((c = next()) != '"') {
+            if (c == '\\') {
+                throw UnsupportedInputException.INSTANCE;
+            }
+        }
+        nameEnd = pos - 1;
+        expect(':');
+    }
+
+    private boolean nameEquals(@Nonnull String name) {
+        return nameEnd - nameStart == name.length()
+                && json.regionMatches(nameStart, name, 0, name.length());
+    }
+
+    @Nonnull
+    private String nextString() throws UnsupportedInputException {
+        skipWhitespace();
+        expect('"');
+        int start = pos;
+        char c;
+        while ((c = next()) != '"') {
+            if (c == '\\') {
+                return readEscapedString(start, pos - 1);
+            }
+        }
+        return json.substring(start, pos - 1);
+    }
+
+    /**
+     * Continues reading a string once the first escape has been found.
+     */
+    @Nonnull
+    private String readEscapedString(int start, int escape) throws UnsupportedInputException {
+        StringBuilder builder = new StringBuilder(escape - start + 16);
+        builder.append(json, start, escape);
+        builder.append(readEscapeCharacter());
+        char c;
+        while ((c = next()) != '"') {
+            if (c == '\\') {
+                builder.append(readEscapeCharacter());
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private void skipString() throws UnsupportedInputException {
+        expect('"');
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readEscapeCharacter();
+            }
+        }
+    }
+
+    private char readEscapeCharacter() throws UnsupportedInputException {
+        char escaped = next();
+        switch (escaped) {
+            case '"':
+            case '\\':
+            case '/':
+                return escaped;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0) {
+                        throw UnsupportedInputException.INSTANCE;
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw UnsupportedInputException.INSTANCE;
+        }
+    }
+
+    @Nonnull
+    private Long nextLong() throws UnsupportedInputException {
+        skipWhitespace();
+        boolean negative = peek() == '-';
+        int start = negative ? pos + 1 : pos;
+        // Fractions, exponents and overflows are coerced by org.json, leave those to it.
+        if (!skipNumber() || pos - start > MAX_SAFE_LONG_DIGITS) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+        long value = 0;
+        for (int i = start; i < pos; i++) {
+            value = value * 10 + (json.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    @Nonnull
+    private Boolean nextBoolean() throws UnsupportedInputException {
+        skipWhitespace();
+        if (json.startsWith("true", pos)) {
+            pos += 4;
+            return Boolean.TRUE;
+        } else if (json.startsWith("false", pos)) {
+            pos += 5;
+            return Boolean.FALSE;
+        }
+        throw UnsupportedInputException.INSTANCE;
+    }
+
+    private void skipValue() throws UnsupportedInputException {
+        skipWhitespace();
+        char c = peek();
+        switch (c) {
+            case '{':
+                pos++;
+                if (hasNextMember()) {
+                    do {
+                        nextName();
+                        skipValue();
+                    } while (nextMember());
+                }
+                return;
+            case '[':
+                pos++;
+                skipWhitespace();
+                if (peek() == ']') {
+                    pos++;
+                    return;
+                }
+                while (true) {
+                    skipValue();
+                    skipWhitespace();
+                    char separator = next();
+                    if (separator == ']') {
+                        return;
+                    } else if (separator != ',') {
+                        throw UnsupportedInputException.INSTANCE;
+                    }
+                }
+            case '"':
+                skipString();
+                return;
+            case 't':
+                skipKeyword("true");
+                return;
+            case 'f':
+                skipKeyword("false");
+                return;
+            case 'n':
+                skipKeyword("null");
+                return;
+            default:
+                int start = pos;
+                boolean integral = skipNumber();
+                // org.json refuses to store non finite numbers.
+                if (!integral || pos - start > MAX_SAFE_LONG_DIGITS) {
+                    if (Double.isInfinite(Double.parseDouble(json.substring(start, pos)))) {
+                        throw UnsupportedInputException.INSTANCE;
+                    }
+                }
+        }
+    }
+
+    private void skipKeyword(@Nonnull String keyword) throws UnsupportedInputException {
+        if (!json.startsWith(keyword, pos)) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+        pos += keyword.length();
+    }
+
+    /**
+     * Skips a number following the strict json grammar.
+     *
+     * @return whether the number has neither fraction nor exponent
+     */
+    private boolean skipNumber() throws UnsupportedInputException {
+        boolean integral = true;
+        if (peek() == '-') {
+            pos++;
+        }
+        char c = peek();
+        if (c == '0') {
+            pos++;
+        } else if (c >= '1' && c <= '9') {
+            skipDigits();
+        } else {
+            throw UnsupportedInputException.INSTANCE;
+        }
+        if (pos < length && json.charAt(pos) == '.') {
+            integral = false;
+            pos++;
+            skipDigits();
+        }
+        if (pos < length && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            integral = false;
+            pos++;
+            if (peek() == '+' || peek() == '-') {
+                pos++;
+            }
+            skipDigits();
+        }
+        return integral;
+    }
+
+    private void skipDigits() throws UnsupportedInputException {
+        int start = pos;
+        while (pos < length && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+            pos++;
+        }
+        if (pos == start) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void expect(char expected) throws UnsupportedInputException {
+        skipWhitespace();
+        if (next() != expected) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+    }
+
+    private char peek() throws UnsupportedInputException {
+        if (pos >= length) {
+            throw UnsupportedInputException.INSTANCE;
+        }
+        return json.charAt(pos);
+    }
+
+    private char next() throws UnsupportedInputException {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    /**
+     * Thrown to abandon the fast path. Carries no state, so a single stackless instance is
+     * shared.
+     */
+    private static final class UnsupportedInputException extends Exception {
+        private static final long serialVersionUID = 1L;
+        static final UnsupportedInputException INSTANCE = new UnsupportedInputException();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers.internal;
+
+import android.support.annotation.RestrictTo;
+
+import java.nio.charset.Charset;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes a {@link RedeemableDigitsSession} as an unsigned JWT.
+ *
+ * The payload is serialized straight into a reusable byte buffer, with the same field order and
+ * escaping as {@link RedeemableDigitsSession#getPayload()}, and then Base64url encoded in place.
+ * The only allocation per token is the returned String.
+ *
+ * Instances are not thread safe.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public final class UnsignedJwtWriter {
+    @Nonnull
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // Base64url of {"alg":"none"} followed by the segment separator.
+    @Nonnull
+    private static final byte[] HEADER_SEGMENT = "eyJhbGciOiJub25lIn0.".getBytes(ASCII);
+    @Nonnull
+    private static final byte[] BASE_64_URL_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(ASCII);
+    @Nonnull
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(ASCII);
+
+    @Nonnull
+    private static final byte[] ID_NAME = name("id");
+    @Nonnull
+    private static final byte[] PHONE_NUMBER_NAME = name("phone_number");
+    @Nonnull
+    private static final byte[] EMAIL_ADDRESS_NAME = name("email_address");
+    @Nonnull
+    private static final byte[] IS_EMAIL_VERIFIED_NAME = name("is_email_verified");
+    @Nonnull
+    private static final byte[] AUTH_TOKEN_NAME = name("auth_token");
+    @Nonnull
+    private static final byte[] AUTH_TOKEN_SECRET_NAME = name("auth_token_secret");
+    @Nonnull
+    private static final byte[] APP_CONSUMER_KEY_NAME = name("app_consumer_key");
+    @Nonnull
+    private static final byte[] APP_CONSUMER_SECRET_NAME = name("app_consumer_secret");
+    @Nonnull
+    private static final byte[] FABRIC_API_KEY_NAME = name("fabric_api_key");
+    @Nonnull
+    private static final byte[] TRUE = "true".getBytes(ASCII);
+    @Nonnull
+    private static final byte[] FALSE = "false".getBytes(ASCII);
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    @Nonnull
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int position;
+    private boolean firstField;
+
+    @Nonnull
+    public String write(@Nonnull RedeemableDigitsSession session) {
+        System.arraycopy(HEADER_SEGMENT, 0, buffer, 0, HEADER_SEGMENT.length);
+        position = HEADER_SEGMENT.length;
+        firstField = true;
+
+        // Same order as RedeemableDigitsSession#getPayload, null values are omitted.
+        writeByte('{');
+        if (session.getId() != null) {
+            writeName(ID_NAME);
+            writeLong(session.getId());
+        }
+        writeStringField(PHONE_NUMBER_NAME, session.getPhoneNumber());
+        writeStringField(EMAIL_ADDRESS_NAME, session.getEmail());
+        if (session.getIsEmailVerified() != null) {
+            writeName(IS_EMAIL_VERIFIED_NAME);
+            writeBytes(session.getIsEmailVerified() ? TRUE : FALSE);
+        }
+        writeStringField(AUTH_TOKEN_NAME, session.getAuthToken());
+        writeStringField(AUTH_TOKEN_SECRET_NAME, session.getAuthTokenSecret());
+        writeStringField(APP_CONSUMER_KEY_NAME, session.getConsumerKey());
+        writeStringField(APP_CONSUMER_SECRET_NAME, session.getConsumerSecret());
+        writeStringField(FABRIC_API_KEY_NAME, session.getFabricApiKey());
+        writeByte('}');
+
+        int end = encodePayloadInPlace(HEADER_SEGMENT.length, position);
+        buffer[end] = '.';
+        return new String(buffer, 0, end + 1, ASCII);
+    }
+
+    /**
+     * Base64url encodes, without padding, the bytes in [start, end) in place.
+     *
+     * @return the end of the encoded bytes
+     */
+    private int encodePayloadInPlace(int start, int end) {
+        int length = end - start;
+        int encodedLength = (length * 4 + 2) / 3;
+        ensureCapacity(start + encodedLength + 1);
+        // Move the payload to the end of the encoded area so that the encoder, writing four
+        // bytes for every three it reads, never overwrites bytes it has not read yet.
+        int read = start + encodedLength - length;
+        System.arraycopy(buffer, start, buffer, read, length);
+        int readEnd = read + length;
+        int write = start;
+        while (readEnd - read >= 3) {
+            int bits = (buffer[read++] & 0xff) << 16
+                    | (buffer[read++] & 0xff) << 8
+                    | (buffer[read++] & 0xff);
+            buffer[write++] = BASE_64_URL_ALPHABET[bits >>> 18];
+            buffer[write++] = BASE_64_URL_ALPHABET[(bits >>> 12) & 0x3f];
+            buffer[write++] = BASE_64_URL_ALPHABET[(bits >>> 6) & 0x3f];
+            buffer[write++] = BASE_64_URL_ALPHABET[bits & 0x3f];
+        }
+        int remaining = readEnd - read;
+        if (remaining == 1) {
+            int bits = (buffer[read] & 0xff) << 16;
+            buffer[write++] = BASE_64_URL_ALPHABET[bits >>> 18];
+            buffer[write++] = BASE_64_URL_ALPHABET[(bits >>> 12) & 0x3f];
+        } else if (remaining == 2) {
+            int bits = (buffer[read] & 0xff) << 16 | (buffer[read + 1] & 0xff) << 8;
+            buffer[write++] = BASE_64_URL_ALPHABET[bits >>> 18];
+            buffer[write++] = BASE_64_URL_ALPHABET[(bits >>> 12) & 0x3f];
+            buffer[write++] = BASE_64_URL_ALPHABET[(bits >>> 6) & 0x3f];
+        }
+        return write;
+    }
+
+    private void writeStringField(@Nonnull byte[] name, @Nullable String value) {
+        if (value != null) {
+            writeName(name);
+            writeString(value);
+        }
+    }
+
+    private void writeName(@Nonnull byte[] name) {
+        if (!firstField) {
+            writeByte(',');
+        }
+        firstField = false;
+        writeBytes(name);
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(position + digits);
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * Writes a json string as UTF-8, escaping like {@link org.json.JSONStringer}.
+     */
+    private void writeString(@Nonnull String value) {
+        writeByte('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    writeByte('\\');
+                    writeByte(c);
+                    break;
+                case '\t':
+                    writeEscape('t');
+                    break;
+                case '\b':
+                    writeEscape('b');
+                    break;
+                case '\n':
+                    writeEscape('n');
+                    break;
+                case '\r':
+                    writeEscape('r');
+                    break;
+                case '\f':
+                    writeEscape('f');
+                    break;
+                default:
+                    if (c <= 0x1f) {
+                        writeEscape('u');
+                        writeByte('0');
+                        writeByte('0');
+                        writeByte(HEX_DIGITS[c >> 4]);
+                        writeByte(HEX_DIGITS[c & 0xf]);
+                    } else if (c < 0x80) {
+                        writeByte(c);
+                    } else if (c < 0x800) {
+                        writeByte(0xc0 | c >> 6);
+                        writeByte(0x80 | c & 0x3f);
+                    } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                        writeByte(0xe0 | c >> 12);
+                        writeByte(0x80 | c >> 6 & 0x3f);
+                        writeByte(0x80 | c & 0x3f);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        writeByte(0xf0 | codePoint >> 18);
+                        writeByte(0x80 | codePoint >> 12 & 0x3f);
+                        writeByte(0x80 | codePoint >> 6 & 0x3f);
+                        writeByte(0x80 | codePoint & 0x3f);
+                    } else {
+                        // Unpaired surrogate, replaced the same way String#getBytes does.
+                        writeByte('?');
+                    }
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeEscape(char escaped) {
+        writeByte('\\');
+        writeByte(escaped);
+    }
+
+    private void writeAscii(@Nonnull String value) {
+        for (int i = 0; i < value.length(); i++) {
+            writeByte(value.charAt(i));
+        }
+    }
+
+    private void writeBytes(@Nonnull byte[] bytes) {
+        ensureCapacity(position + bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(position + 1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+
+    @Nonnull
+    private static byte[] name(@Nonnull String name) {
+        return ("\"" + name + "\":").getBytes(ASCII);
+    }
+}
@@ -17,14 +17,11 @@ package com.firebase.digitsmigrationhelpers;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.robolectric.annotation.Config;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
-@RunWith(RobolectricGradleTestRunner.class)
-@Config(manifest = Config.NONE)
 public class RedeemableDigitsSessionBuilderTest {
 
     private static final long DIGITS_ID = 112L;
@@ -101,4 +98,24 @@ public class RedeemableDigitsSessionBuilderTest {
                 .setConsumerKey("")
                 .setConsumerSecret("").build();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCopy() throws JSONException {
+        RedeemableDigitsSessionBuilder parsed =
+                RedeemableDigitsSessionBuilder.fromSessionJson(VALID_DIGITS_SESSION);
+        RedeemableDigitsSessionBuilder copy = parsed.copy()
+                .setConsumerKey(CONSUMER_KEY)
+                .setConsumerSecret(CONSUMER_SECRET)
+                .setFabricApiKey(FABRIC_API_KEY);
+        JSONObject jsonObject = copy.build().getPayload();
+
+        assertEquals(DIGITS_ID, jsonObject.getLong("id"));
+        assertEquals(AUTH_TOKEN, jsonObject.getString("auth_token"));
+        assertEquals(CONSUMER_KEY, jsonObject.getString("app_consumer_key"));
+        try {
+            parsed.build();
+            fail("Keys set on the copy must not change the original");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
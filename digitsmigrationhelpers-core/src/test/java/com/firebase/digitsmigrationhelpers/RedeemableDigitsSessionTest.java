@@ -13,7 +13,7 @@
  */
 package com.firebase.digitsmigrationhelpers;
 
-import com.firebase.digitsmigrationhelpers.internal.ClearSessionContinuation;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
 
 import org.junit.Test;
 
@@ -21,13 +21,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.json.JSONObject;
-import org.junit.runner.RunWith;
-import org.robolectric.annotation.Config;
 
-import migration.auth.digits.google.com.digitsmigrationhelpers.BuildConfig;
-
-@RunWith(RobolectricGradleTestRunner.class)
-@Config(constants = BuildConfig.class, sdk = 21)
 public class RedeemableDigitsSessionTest {
     private static final long DIGITS_ID = 112L;
     private static final String PHONE_NUMBER = "1231";
@@ -41,8 +35,8 @@ public class RedeemableDigitsSessionTest {
 
     @Test
     public void testInstanceWithNonNullValues() throws Exception {
-        ClearSessionContinuation.RedeemableDigitsSession session =
-                new ClearSessionContinuation.RedeemableDigitsSession(DIGITS_ID, PHONE_NUMBER, EMAIL,
+        RedeemableDigitsSession session =
+                new RedeemableDigitsSession(DIGITS_ID, PHONE_NUMBER, EMAIL,
                         IS_EMAIL_VERIFIED, AUTH_TOKEN, AUTH_TOKEN_SECRET, CONSUMER_KEY,
                         CONSUMER_SECRET, FABRIC_API_KEY);
 
@@ -60,8 +54,8 @@ public class RedeemableDigitsSessionTest {
 
     @Test
     public void testInstancesTokenWithNullValues() throws Exception {
-        ClearSessionContinuation.RedeemableDigitsSession session =
-                new ClearSessionContinuation.RedeemableDigitsSession(null, null, EMAIL,
+        RedeemableDigitsSession session =
+                new RedeemableDigitsSession(null, null, EMAIL,
                         IS_EMAIL_VERIFIED, AUTH_TOKEN, AUTH_TOKEN_SECRET, CONSUMER_KEY,
                         CONSUMER_SECRET, FABRIC_API_KEY);
 
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import com.firebase.digitsmigrationhelpers.internal.SessionJsonReader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SessionJsonReaderTest {
+    private static final String FABRIC_API_KEY = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+    private static final String CONSUMER_KEY = "consumer_key";
+    private static final String CONSUMER_SECRET = "consumer_secret";
+
+    private static final String VALID_DIGITS_SESSION = "{\"email\":{\"address\":\"a@b.com\","
+            + "\"is_verified\":false},\"phone_number\":\"5551234567\",\"auth_token\":{"
+            + "\"auth_type\":\"oauth1a\",\"auth_token\":{\"secret\":\"auth_token_secret\","
+            + "\"token\":\"auth_token\",\"created_at\":0}},\"id\":112}";
+
+    /** Strict json the streaming reader is expected to handle on its own. */
+    private static final String[] STRICT_SESSIONS = {
+            VALID_DIGITS_SESSION,
+            "{}",
+            " \n\t{ \r\n } \n",
+            "{\"id\":0}",
+            "{\"id\":-0}",
+            "{\"id\":-42}",
+            "{\"id\":2147483648}",
+            "{\"id\":999999999999999999}",
+            "{\"id\":-999999999999999999}",
+            "{\"phone_number\":\"\"}",
+            "{\"phone_number\":\"+1 \\\"555\\\" \\\\ \\/ \\b\\f\\n\\r\\t\"}",
+            "{\"phone_number\":\"\\u0035\\u00e9\\ud83d\\ude00\"}",
+            "{\"phone_number\":\"caf\u00e9 \ud83d\ude00 \u2028\"}",
+            "{\"email\":{}}",
+            "{\"email\":{\"is_verified\":true}}",
+            "{\"email\":{\"address\":\"a@b.com\",\"extra\":[1,2,{\"x\":null}]}}",
+            "{\"auth_token\":{}}",
+            "{\"auth_token\":{\"auth_token\":{}}}",
+            "{\"auth_token\":{\"auth_token\":{\"token\":\"t\"},\"created_at\":1.5e10}}",
+            "{\"unknown\":{\"email\":\"nested\",\"id\":\"x\"},\"id\":1}",
+            "{\"skipped\":[],\"also\":[[[]],{}],\"n\":-1.25E-3,\"s\":\"\\u00ff\\\"\",\"t\":true,"
+                    + "\"f\":false,\"z\":null,\"big\":123456789012345678901234567890}",
+            "{\"duplicate\":1,\"duplicate\":2,\"id\":7}",
+            "{ \"id\" : 7 , \"phone_number\" : \"1\" }",
+    };
+
+    /** Inputs outside of strict json or needing org.json coercions. */
+    private static final String[] FALLBACK_SESSIONS = {
+            "",
+            "   ",
+            "invalid_json",
+            "[]",
+            "null",
+            "\"session\"",
+            "{",
+            "{\"id\":}",
+            "{\"id\":1,}",
+            "{\"id\":1} trailing",
+            "{\"id\":1}}",
+            "{id:1}",
+            "{'id':1}",
+            "{\"id\"=1}",
+            "{\"id\"=>1}",
+            "{\"id\":1;\"phone_number\":\"2\"}",
+            "{/* comment */\"id\":1}",
+            "{\"id\":1 # comment\n}",
+            "{\"id\":null}",
+            "{\"id\":\"112\"}",
+            "{\"id\":\"abc\"}",
+            "{\"id\":1.5}",
+            "{\"id\":1e2}",
+            "{\"id\":010}",
+            "{\"id\":0x10}",
+            "{\"id\":-}",
+            "{\"id\":+1}",
+            "{\"id\":9223372036854775807}",
+            "{\"id\":99999999999999999999}",
+            "{\"id\":true}",
+            "{\"id\":1,\"id\":2}",
+            "{\"\\u0069d\":3}",
+            "{\"phone_number\":null}",
+            "{\"phone_number\":5551234567}",
+            "{\"phone_number\":1.50}",
+            "{\"phone_number\":true}",
+            "{\"phone_number\":abc}",
+            "{\"phone_number\":\"unterminated}",
+            "{\"phone_number\":\"\\q\"}",
+            "{\"phone_number\":\"\\u12\"}",
+            "{\"phone_number\":\"\\u-001\"}",
+            "{\"email\":null}",
+            "{\"email\":\"a@b.com\"}",
+            "{\"email\":[]}",
+            "{\"email\":{\"is_verified\":\"true\"}}",
+            "{\"email\":{\"is_verified\":\"TRUE\"}}",
+            "{\"email\":{\"is_verified\":TRUE}}",
+            "{\"email\":{\"is_verified\":1}}",
+            "{\"email\":{\"is_verified\":null}}",
+            "{\"email\":{\"address\":\"a\"},\"email\":{\"is_verified\":true}}",
+            "{\"email\":{\"address\":\"a\",\"address\":\"b\"}}",
+            "{\"auth_token\":\"token\"}",
+            "{\"auth_token\":{\"auth_token\":\"token\"}}",
+            "{\"auth_token\":{\"auth_token\":{\"token\":7}}}",
+            "{\"auth_token\":{\"auth_token\":{\"token\":\"a\",\"token\":\"b\"}}}",
+            "{\"auth_token\":{\"auth_token\":{}},\"auth_token\":{}}",
+            "{\"skipped\":1e999}",
+            "{\"skipped\":-1e999,\"id\":1}",
+            "{\"skipped\":[1e999]}",
+            "{\"skipped\":[1,]}",
+            "{\"skipped\":[1 2]}",
+            "{\"skipped\":tru}",
+            "{\"skipped\":truex}",
+            "{\"skipped\":nul}",
+            "{\"skipped\":01}",
+            "{\"skipped\":1.}",
+            "{\"skipped\":.5}",
+            "{\"skipped\":1e}",
+            "\ufeff{\"id\":1}",
+    };
+
+    @Test
+    public void testStrictSessionsTakeFastPath() {
+        for (String json : STRICT_SESSIONS) {
+            assertNotNull(json, SessionJsonReader.read(json));
+        }
+    }
+
+    @Test
+    public void testUnsupportedSessionsFallBack() {
+        for (String json : FALLBACK_SESSIONS) {
+            assertNull(json, SessionJsonReader.read(json));
+        }
+    }
+
+    @Test
+    public void testMatchesJsonObjectParser() {
+        for (String json : STRICT_SESSIONS) {
+            assertEquals(json, fromSessionJsonObject(json), fromSessionJson(json));
+        }
+        for (String json : FALLBACK_SESSIONS) {
+            assertEquals(json, fromSessionJsonObject(json), fromSessionJson(json));
+        }
+    }
+
+    @Test
+    public void testValidSession() throws JSONException {
+        // Compared field by field, JVM builds of org.json do not keep insertion order.
+        JSONObject payload = SessionJsonReader.read(VALID_DIGITS_SESSION)
+                .setConsumerKey(CONSUMER_KEY)
+                .setConsumerSecret(CONSUMER_SECRET)
+                .setFabricApiKey(FABRIC_API_KEY)
+                .build()
+                .getPayload();
+        assertEquals(9, payload.length());
+        assertEquals(112L, payload.getLong("id"));
+        assertEquals("5551234567", payload.getString("phone_number"));
+        assertEquals("a@b.com", payload.getString("email_address"));
+        assertEquals(false, payload.getBoolean("is_email_verified"));
+        assertEquals("auth_token", payload.getString("auth_token"));
+        assertEquals("auth_token_secret", payload.getString("auth_token_secret"));
+        assertEquals(CONSUMER_KEY, payload.getString("app_consumer_key"));
+        assertEquals(CONSUMER_SECRET, payload.getString("app_consumer_secret"));
+        assertEquals(FABRIC_API_KEY, payload.getString("fabric_api_key"));
+    }
+
+    private static String fromSessionJson(String json) {
+        try {
+            return describe(RedeemableDigitsSessionBuilder.fromSessionJson(json));
+        } catch (Exception e) {
+            // org.json also lets some runtime exceptions through, those must match as well.
+            return e.getClass().getName();
+        }
+    }
+
+    private static String fromSessionJsonObject(String json) {
+        try {
+            return describe(RedeemableDigitsSessionBuilder.fromSessionJsonObject(json));
+        } catch (Exception e) {
+            // org.json also lets some runtime exceptions through, those must match as well.
+            return e.getClass().getName();
+        }
+    }
+
+    private static String describe(RedeemableDigitsSessionBuilder builder) {
+        return builder.setConsumerKey(CONSUMER_KEY)
+                .setConsumerSecret(CONSUMER_SECRET)
+                .setFabricApiKey(FABRIC_API_KEY)
+                .build()
+                .getPayload()
+                .toString();
+    }
+}
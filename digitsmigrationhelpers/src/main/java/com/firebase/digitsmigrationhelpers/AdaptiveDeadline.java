@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives the default migration deadline from a moving average of the exchange latencies seen on
+ * this device, persisted so that it carries over cold starts.
+ */
+final class AdaptiveDeadline {
+    // Used until an exchange completed on this device.
+    static final long DEFAULT_DEADLINE_MILLIS = 5000;
+    static final long MIN_DEADLINE_MILLIS = 2000;
+    static final long MAX_DEADLINE_MILLIS = 15000;
+    // Leaves room for a slower than usual exchange before giving up waiting on it.
+    private static final long AVERAGE_MULTIPLIER = 3;
+    // Weight of a new latency in the average, older ones fade away geometrically.
+    private static final double SAMPLE_WEIGHT = 0.25;
+    private static final long NOT_LOADED = -1;
+
+    @NonNull
+    private final StorageHelpers mStorageHelpers;
+    @NonNull
+    private final Object mLock = new Object();
+    // Guarded by mLock. 0 until an exchange completed, NOT_LOADED until read from disk.
+    private long mAverageMillis = NOT_LOADED;
+
+    AdaptiveDeadline(@NonNull StorageHelpers storageHelpers) {
+        mStorageHelpers = storageHelpers;
+    }
+
+    @WorkerThread
+    long getDeadlineMillis() {
+        final long averageMillis;
+        synchronized (mLock) {
+            averageMillis = getAverageMillisLocked();
+        }
+        if (averageMillis == 0) {
+            return DEFAULT_DEADLINE_MILLIS;
+        }
+        return Math.max(MIN_DEADLINE_MILLIS,
+                Math.min(MAX_DEADLINE_MILLIS, averageMillis * AVERAGE_MULTIPLIER));
+    }
+
+    /**
+     * Adds the round trip time of a successful exchange to the average.
+     */
+    @WorkerThread
+    void recordExchangeLatency(long nanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        synchronized (mLock) {
+            final long averageMillis = getAverageMillisLocked();
+            // Kept at 1 or more, 0 means no exchange completed.
+            mAverageMillis = Math.max(1, averageMillis == 0
+                    ? millis
+                    : Math.round(averageMillis + SAMPLE_WEIGHT * (millis - averageMillis)));
+            mStorageHelpers.putExchangeLatencyAverageMillis(mAverageMillis);
+        }
+    }
+
+    private long getAverageMillisLocked() {
+        if (mAverageMillis == NOT_LOADED) {
+            mAverageMillis = Math.max(0, mStorageHelpers.getExchangeLatencyAverageMillis());
+        }
+        return mAverageMillis;
+    }
+}
@@ -17,14 +17,24 @@ package com.firebase.digitsmigrationhelpers;
 import android.app.Activity;
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.util.Log;
 
-import com.firebase.digitsmigrationhelpers.internal.ClearSessionContinuation;
+import com.firebase.digitsmigrationhelpers.internal.BackgroundExecutor;
+import com.firebase.digitsmigrationhelpers.internal.ExchangeCircuitOpenException;
+import com.firebase.digitsmigrationhelpers.internal.ExchangeLockTimeoutException;
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.ManifestMetadata;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
 import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
 import com.google.android.gms.tasks.Continuation;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.auth.AuthResult;
@@ -33,7 +43,18 @@ import com.google.firebase.auth.FirebaseUser;
 
 import org.json.JSONException;
 
-import java.util.WeakHashMap;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.support.annotation.VisibleForTesting.PRIVATE;
 
@@ -43,34 +64,79 @@ import static android.support.annotation.VisibleForTesting.PRIVATE;
  */
 public final class AuthMigrator {
     @NonNull
-    private static final WeakHashMap<FirebaseApp, AuthMigrator> instances = new WeakHashMap<>();
+    private static final WeakKeyedRegistry<FirebaseApp, AuthMigrator> instances =
+            new WeakKeyedRegistry<>(new WeakKeyedRegistry.Factory<FirebaseApp, AuthMigrator>() {
+                @NonNull
+                @Override
+                public AuthMigrator create(@NonNull FirebaseApp app) {
+                    final StorageHelpers storageHelpers =
+                            new StorageHelpers(app.getApplicationContext());
+                    return new AuthMigrator(app, storageHelpers, FirebaseAuth.getInstance(),
+                            BackgroundExecutor.get(),
+                            ExchangeCircuitBreaker.getInstance(storageHelpers),
+                            ExchangeLock.getInstance(storageHelpers),
+                            RejectedSessionCache.getInstance(storageHelpers));
+                }
+            });
     @NonNull
     private final StorageHelpers mStorageHelpers;
     @NonNull
     private final FirebaseAuth mFirebaseAuth;
+    // Held weakly so that the registry entry goes away with a deleted app.
+    @NonNull
+    private final WeakReference<FirebaseApp> mApp;
+    @NonNull
+    private final Context mApplicationContext;
+    @NonNull
+    private final Executor mDefaultExecutor;
+    @NonNull
+    private final ScheduledExecutorService mScheduler;
+    @Nullable
+    private volatile RetryPolicy mRetryPolicy;
+    @Nullable
+    private volatile RolloutPolicy mRolloutPolicy;
+    @Nullable
+    private volatile MigrationListener mMigrationListener;
+    @NonNull
+    private volatile MigrationSchedule mMigrationSchedule = MigrationSchedule.EAGER;
+    @NonNull
+    private final MigrationStatsRecorder mStats = new MigrationStatsRecorder();
+    @NonNull
+    private final AdaptiveDeadline mAdaptiveDeadline;
     @NonNull
-    private final FirebaseApp mApp;
+    private final RejectedSessionCache mRejectedSessions;
     @NonNull
-    private final ClearSessionContinuation mClearSessionContinuation;
+    private final ExchangeCircuitBreaker mCircuitBreaker;
+    @NonNull
+    private final ExchangeLock mExchangeLock;
+    @NonNull
+    private final Object mMigrationLock = new Object();
+    @Nullable
+    private Task<MigrationResult> mMigrationResultTask;
+    @Nullable
+    private Task<Void> mMigrationTask;
+    // Starts the ON_DEMAND migration waiting to be asked for, if any.
+    @Nullable
+    private TaskCompletionSource<Void> mOnDemandStart;
     @NonNull
     private static final Task<Void> VOID_TASK = Tasks.forResult(null);
     @NonNull
-    private static final Continuation<AuthResult, Task<Void>> VOID_CONTINUATION =
-            new Continuation<AuthResult, Task<Void>> () {
+    private static final Continuation<MigrationResult, Task<Void>> RESULT_CONTINUATION =
+            new Continuation<MigrationResult, Task<Void>>() {
                 @Override
-                public Task<Void> then(@NonNull Task<AuthResult> task) throws Exception {
-                    if(task.isSuccessful()) {
-                        return VOID_TASK;
-                    }
-                    try {
-                        throw task.getException();
-                    } catch (Exception e) {
-                        return Tasks.forException(e);
+                public Task<Void> then(@NonNull Task<MigrationResult> task) {
+                    if (!task.isSuccessful()) {
+                        return Tasks.forException(task.getException());
                     }
+                    final MigrationResult result = task.getResult();
+                    return result.isSuccessful()
+                            ? VOID_TASK
+                            : Tasks.<Void>forException(result.getException());
                 }
-    };
+            };
 
     private static final String TAG = "DigitsAuthMigrator";
+    private static final long ADAPTIVE_DEADLINE = -1;
 
     /**
      * Gets an instance of {@link AuthMigrator}
@@ -80,15 +146,7 @@ public final class AuthMigrator {
      * @return AuthMigrator for the firebase mApp
      */
     public static AuthMigrator getInstance(FirebaseApp app) {
-        synchronized (instances) {
-            AuthMigrator instance = instances.get(app);
-            if (instance == null) {
-                instance = new AuthMigrator(app, new StorageHelpers(app.getApplicationContext()),
-                        FirebaseAuth.getInstance());
-                instances.put(app, instance);
-            }
-            return instance;
-        }
+        return instances.get(app);
     }
 
     /**
@@ -105,10 +163,10 @@ public final class AuthMigrator {
     /**
      * gets the {@link FirebaseApp} for this {@link AuthMigrator} instance
      *
-     * @return mApp
+     * @return mApp, or null if the app was deleted and garbage collected
      */
     public FirebaseApp getApp() {
-        return mApp;
+        return mApp.get();
     }
 
     /**
@@ -165,52 +223,508 @@ public final class AuthMigrator {
      * <ol><li>The server was unable to validate it. The corrupt session is automatically
      * (optionally) cleared</li>
      * <li>The server failed for internal reasons. The legacy session is retained to permit
-     * retries initiated from the mApp</li>
+     * retries initiated from the mApp, or by a {@link #setRetryPolicy(RetryPolicy)}</li>
      * </ol>
+     * Calls made while a migration is still running do not start another exchange, they return
+     * the task of the running migration. The cleanup choice of that first call applies.
+     * <p>
+     * In apps running several processes, one process at a time exchanges the session. The
+     * others wait for it and take its answer instead of sending the session again, see
+     * {@link MigrationResult.Status#EXCHANGED_IN_OTHER_PROCESS}. A process that waited longer
+     * than an exchange usually takes gives up with a
+     * {@link MigrationResult.Status#TRANSIENT_FAILURE}.
+     * <p>
+     * Reading the session, the manifest lookup, parsing and cleanup run on background threads,
+     * the independent steps in parallel. Use {@link #migrate(boolean, Executor)} to provide
+     * another executor.
+     * <p>
+     * Use {@link #migrateForResult(boolean)} to find out which of the above happened.
      */
     public Task<Void> migrate(boolean cleanupDigitsSession) {
-        final FirebaseUser currentUser = mFirebaseAuth.getCurrentUser();
-        final String sessionJson = mStorageHelpers.getDigitsSessionJson();
-        final Context context = mApp.getApplicationContext();
-        final RedeemableDigitsSessionBuilder builder;
+        return migrate(cleanupDigitsSession, mDefaultExecutor);
+    }
+
+    /**
+     * Same as {@link #migrate(boolean)}, running every disk, parse and cleanup step of the
+     * migration on the provided executor. The calling thread only schedules the work. With a
+     * multi-threaded executor, the independent steps run in parallel.
+     * <p>
+     * Listeners added to the returned task without an executor are still invoked on the main
+     * thread, so the task can be observed from the UI.
+     *
+     * @param cleanupDigitsSession whether the legacy digits session should be cleaned up after a
+     *                             successful exchange or if found to be invalid.
+     * @param executor             executor running the migration steps. It should not be the main
+     *                             thread.
+     * @return task representing the token exchange process, see {@link #migrate(boolean)}
+     */
+    public Task<Void> migrate(final boolean cleanupDigitsSession,
+                              @NonNull final Executor executor) {
+        synchronized (mMigrationLock) {
+            startMigrationIfIdle(cleanupDigitsSession, executor);
+            return mMigrationTask;
+        }
+    }
+
+    /**
+     * Same as {@link #migrate(boolean)}, but the returned task reports what the migration found
+     * and did instead of failing. Callers no longer need to look at
+     * {@link FirebaseAuth#getCurrentUser()} to tell the outcomes apart:
+     * <pre>
+     * <code>AuthMigrator.getInstance().migrateForResult(true).addOnSuccessListener(new{@code
+     * OnSuccessListener<MigrationResult>}() {
+     *    {@literal @}Override
+     *     public void onSuccess(MigrationResult result) {
+     *          switch (result.getStatus()) {
+     *              case ALREADY_SIGNED_IN:
+     *              case EXCHANGED:
+     *                  Log.d("Digits", "Preserved User Id" + result.getUser().getUid());
+     *                  break;
+     *              case TRANSIENT_FAILURE:
+     *                  // The legacy session was kept, the migration can be retried later.
+     *                  break;
+     *              default:
+     *                  Log.d("Digits", "No valid legacy digits session found");
+     *          }
+     *     }
+     * });</code></pre>
+     * The returned task only fails on unexpected errors. Calls made while a migration is running
+     * join it, including calls to {@link #migrate(boolean)}. To bound how long the UI waits, use
+     * {@link #migrateForResult(boolean, CancellationSignal)}.
+     *
+     * @param cleanupDigitsSession whether the legacy digits session should be cleaned up after a
+     *                             successful exchange or if found to be invalid.
+     * @return task resolving to the outcome of the migration
+     */
+    public Task<MigrationResult> migrateForResult(boolean cleanupDigitsSession) {
+        return migrateForResult(cleanupDigitsSession, mDefaultExecutor);
+    }
 
-        // If there's already a current user, don't migrate and clear the legacy token.
-        if (currentUser != null) {
-            Log.d(TAG, "Found existing firebase session. Skipping Exchange.");
-            return cleanupAndCreateEmptyResult(cleanupDigitsSession);
+    /**
+     * Same as {@link #migrateForResult(boolean)}, running the migration steps on the provided
+     * executor. See {@link #migrate(boolean, Executor)}.
+     */
+    public Task<MigrationResult> migrateForResult(boolean cleanupDigitsSession,
+                                                  @NonNull Executor executor) {
+        synchronized (mMigrationLock) {
+            startMigrationIfIdle(cleanupDigitsSession, executor);
+            return mMigrationResultTask;
         }
+    }
+
+    /**
+     * Same as {@link #migrateForResult(boolean)}, but the returned task resolves to a
+     * {@link MigrationResult.Status#PENDING} result if the migration takes longer than usual on
+     * this device, e.g. because the network hangs. The deadline is a multiple of the average time
+     * past exchanges took, persisted across launches, or a few seconds before the first one.
+     * <p>
+     * A pending migration goes on in the background: its outcome is reported by
+     * {@link #getMigrationTask()} and by later calls, which join it.
+     *
+     * @param cleanupDigitsSession whether the legacy digits session should be cleaned up after a
+     *                             successful exchange or if found to be invalid.
+     * @param cancellationSignal   signal to stop waiting for the migration, or null. Canceling
+     *                             it fails the returned task with an
+     *                             {@link OperationCanceledException} and does not stop the
+     *                             migration. Its cancel listener is replaced.
+     * @return task resolving to the outcome of the migration, or to a pending result
+     */
+    public Task<MigrationResult> migrateForResult(boolean cleanupDigitsSession,
+                                                  @Nullable CancellationSignal cancellationSignal) {
+        return new DeadlineWait(ADAPTIVE_DEADLINE, cancellationSignal)
+                .start(migrateForResult(cleanupDigitsSession));
+    }
 
-        // If no legacy session found, return
-        if(sessionJson == null) {
-            Log.d(TAG, "No digits session found");
-            return cleanupAndCreateEmptyResult(cleanupDigitsSession);
+    /**
+     * Same as {@link #migrateForResult(boolean, CancellationSignal)}, with a fixed deadline.
+     *
+     * @param deadlineMillis how long to wait for the migration, in milliseconds
+     */
+    public Task<MigrationResult> migrateForResult(boolean cleanupDigitsSession,
+                                                  long deadlineMillis,
+                                                  @Nullable CancellationSignal cancellationSignal) {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException("deadlineMillis must not be negative");
         }
+        return new DeadlineWait(deadlineMillis, cancellationSignal)
+                .start(migrateForResult(cleanupDigitsSession));
+    }
 
-        Log.d(TAG, "Exchanging digits session");
+    // Must be called while holding mMigrationLock.
+    private void startMigrationIfIdle(final boolean cleanupDigitsSession,
+                                      @NonNull final Executor executor) {
+        if (mMigrationTask != null && !mMigrationTask.isComplete()) {
+            Log.d(TAG, "Migration already in progress. Joining it.");
+            return;
+        }
+        mMigrationResultTask = whenDue(mMigrationSchedule).continueWithTask(executor,
+                new Continuation<Void, Task<MigrationResult>>() {
+                    @Override
+                    public Task<MigrationResult> then(@NonNull Task<Void> task) {
+                        return startMigration(cleanupDigitsSession, executor);
+                    }
+                });
+        mMigrationTask = mMigrationResultTask.continueWithTask(executor, RESULT_CONTINUATION);
+    }
+
+    // Must be called while holding mMigrationLock.
+    @NonNull
+    private Task<Void> whenDue(@NonNull MigrationSchedule schedule) {
+        switch (schedule) {
+            case AFTER_FIRST_FRAME:
+                return StartupScheduler.afterNextFrame();
+            case IDLE:
+                return StartupScheduler.whenIdle(mScheduler);
+            case ON_DEMAND:
+                mOnDemandStart = new TaskCompletionSource<>();
+                return mOnDemandStart.getTask();
+            default:
+                return VOID_TASK;
+        }
+    }
 
-        // If session is invalid, return
+    /**
+     * Gets the task of the latest {@link #migrate(boolean)} call, whether it is still running or
+     * has completed. Listeners added to a completed task are invoked right away, so this can be
+     * used by components that start after the migration was kicked off.
+     * <p>
+     * Starts the migration if it was deferred by {@link MigrationSchedule#ON_DEMAND}.
+     *
+     * @return the latest migration task, or null if {@link #migrate(boolean)} was never called
+     */
+    @Nullable
+    public Task<Void> getMigrationTask() {
+        final Task<Void> migrationTask;
+        synchronized (mMigrationLock) {
+            migrationTask = mMigrationTask;
+        }
+        startOnDemandMigration();
+        return migrationTask;
+    }
+
+    /**
+     * Same as {@link #getMigrationTask()}, for the outcome reported by
+     * {@link #migrateForResult(boolean)}.
+     *
+     * @return the latest migration result task, or null if no migration was kicked off
+     */
+    @Nullable
+    public Task<MigrationResult> getMigrationResultTask() {
+        final Task<MigrationResult> migrationResultTask;
+        synchronized (mMigrationLock) {
+            migrationResultTask = mMigrationResultTask;
+        }
+        startOnDemandMigration();
+        return migrationResultTask;
+    }
+
+    private void startOnDemandMigration() {
+        final TaskCompletionSource<Void> onDemandStart;
+        synchronized (mMigrationLock) {
+            onDemandStart = mOnDemandStart;
+            mOnDemandStart = null;
+        }
+        // Outside the lock, the migration may run on the calling thread.
+        if (onDemandStart != null) {
+            onDemandStart.setResult(null);
+        }
+    }
+
+    /**
+     * Checks for a signed in user, which also loads the persisted Firebase session, while the
+     * legacy session is read and parsed and the manifest is looked up. The latter two are
+     * speculative: once a signed in user is found, work that has not started yet is skipped and
+     * their results are dropped.
+     */
+    @WorkerThread
+    private Task<MigrationResult> startMigration(final boolean cleanupDigitsSession,
+                                                 @NonNull final Executor executor) {
+        final MigrationTimeline timeline = new MigrationTimeline(mMigrationListener);
+        final AtomicBoolean signedIn = new AtomicBoolean();
+        final Task<FirebaseUser> currentUserTask = Tasks.call(executor,
+                new Callable<FirebaseUser>() {
+                    @Override
+                    public FirebaseUser call() {
+                        final FirebaseUser currentUser = mFirebaseAuth.getCurrentUser();
+                        if (currentUser != null) {
+                            signedIn.set(true);
+                        }
+                        return currentUser;
+                    }
+                });
+        final Task<LegacySession> sessionTask = Tasks.call(executor,
+                new Callable<LegacySession>() {
+                    @Override
+                    public LegacySession call() {
+                        return readLegacySession(signedIn, timeline);
+                    }
+                });
+        final Task<ManifestMetadata> metadataTask = Tasks.call(executor,
+                new Callable<ManifestMetadata>() {
+                    @Override
+                    public ManifestMetadata call() {
+                        if (signedIn.get()) {
+                            return null;
+                        }
+                        timeline.begin(MigrationPhase.MANIFEST_READ);
+                        try {
+                            return mStorageHelpers.getManifestMetadata(mApplicationContext);
+                        } finally {
+                            timeline.end(MigrationPhase.MANIFEST_READ);
+                        }
+                    }
+                });
+
+        return Tasks.whenAll(currentUserTask, sessionTask, metadataTask).continueWithTask(executor,
+                new Continuation<Void, Task<MigrationResult>>() {
+                    @Override
+                    public Task<MigrationResult> then(@NonNull Task<Void> task) throws Exception {
+                        // If there's already a current user, don't migrate and clear the legacy
+                        // token.
+                        final FirebaseUser currentUser = getResult(currentUserTask);
+                        if (currentUser != null) {
+                            Log.d(TAG, "Found existing firebase session. Skipping Exchange.");
+                            return complete(MigrationResult.Status.ALREADY_SIGNED_IN, currentUser,
+                                    null, cleanupDigitsSession, timeline, executor);
+                        }
+
+                        // If no legacy session found, return
+                        final LegacySession session = getResult(sessionTask);
+                        if (session.mJson == null) {
+                            Log.d(TAG, "No digits session found");
+                            if (!session.mSettled) {
+                                mStorageHelpers.markMigrationSettled();
+                            }
+                            return complete(MigrationResult.Status.NO_SESSION, null, null,
+                                    cleanupDigitsSession, timeline, executor);
+                        }
+
+                        // If session is invalid, return
+                        if (session.mParsed == null) {
+                            Log.d(TAG, "Digits sesion is corrupt");
+                            return complete(MigrationResult.Status.CORRUPT_SESSION, null, null,
+                                    cleanupDigitsSession, timeline, executor);
+                        }
+
+                        final RolloutPolicy rolloutPolicy = mRolloutPolicy;
+                        if (rolloutPolicy != null
+                                && !rolloutPolicy.includes(getRolloutKey(session.mParsed))) {
+                            Log.d(TAG, "Device not part of the rollout. Keeping digits session.");
+                            return complete(MigrationResult.Status.NOT_ROLLED_OUT, null, null,
+                                    false, timeline, executor);
+                        }
+
+                        Log.d(TAG, "Exchanging digits session");
+                        final ManifestMetadata metadata = getResult(metadataTask);
+                        final RedeemableDigitsSessionBuilder builder = session.mParsed.copy()
+                                .setConsumerKey(metadata.getConsumerKey())
+                                .setConsumerSecret(metadata.getConsumerSecret())
+                                .setFabricApiKey(metadata.getFabricApiKey());
+                        final long startDelayMillis = rolloutPolicy == null
+                                ? 0
+                                : rolloutPolicy.nextStartDelayMillis();
+                        if (startDelayMillis == 0) {
+                            return exchangeSession(builder, cleanupDigitsSession, timeline,
+                                    executor);
+                        }
+                        return delay(startDelayMillis).continueWithTask(executor,
+                                new Continuation<Void, Task<MigrationResult>>() {
+                                    @Override
+                                    public Task<MigrationResult> then(@NonNull Task<Void> task) {
+                                        return exchangeSession(builder, cleanupDigitsSession,
+                                                timeline, executor);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Reads and parses the legacy session, unless a signed in user was found first.
+     *
+     * @return the session, or null if a signed in user was found
+     */
+    @WorkerThread
+    @Nullable
+    private LegacySession readLegacySession(@NonNull AtomicBoolean signedIn,
+                                            @NonNull MigrationTimeline timeline) {
+        if (signedIn.get()) {
+            return null;
+        }
+        // Nothing to migrate on this device, don't even load the legacy session store.
+        timeline.begin(MigrationPhase.PREFS_READ);
+        final boolean settled = mStorageHelpers.isMigrationSettled();
+        final String sessionJson = settled ? null : mStorageHelpers.getDigitsSessionJson();
+        timeline.end(MigrationPhase.PREFS_READ);
+        if (sessionJson == null || signedIn.get()) {
+            return new LegacySession(settled, sessionJson, null);
+        }
+
+        timeline.begin(MigrationPhase.PARSE);
         try {
-            builder = RedeemableDigitsSessionBuilder.fromSessionJson(sessionJson);
+            // A session kept after a failed exchange was already parsed by that attempt.
+            RedeemableDigitsSessionBuilder parsed =
+                    mStorageHelpers.getParsedDigitsSession(sessionJson);
+            if (parsed == null) {
+                parsed = RedeemableDigitsSessionBuilder.fromSessionJson(sessionJson);
+                mStorageHelpers.putParsedDigitsSession(sessionJson, parsed);
+            }
+            return new LegacySession(false, sessionJson, parsed);
         } catch (JSONException e) {
-            Log.d(TAG, "Digits sesion is corrupt");
             //invalid session
-            return cleanupAndCreateEmptyResult(cleanupDigitsSession);
+            return new LegacySession(false, sessionJson, null);
+        } finally {
+            timeline.end(MigrationPhase.PARSE);
         }
+    }
 
-        builder.setConsumerKey(mStorageHelpers.getApiKeyFromManifest(context,
-                        StorageHelpers.DIGITS_CONSUMER_KEY_KEY))
-                .setConsumerSecret(mStorageHelpers.getApiKeyFromManifest(context,
-                        StorageHelpers.DIGITS_CONSUMER_SECRET_KEY))
-                .setFabricApiKey(mStorageHelpers.getApiKeyFromManifest(context,
-                        StorageHelpers.FABRIC_API_KEY_KEY));
+    /**
+     * Returns what the rollout bucket of the session is derived from: the Digits user id, or the
+     * auth token of sessions that have none.
+     */
+    private static long getRolloutKey(@NonNull RedeemableDigitsSessionBuilder session) {
+        final Long id = session.getId();
+        if (id != null) {
+            return id;
+        }
+        final String authToken = session.getAuthToken();
+        return authToken == null ? 0 : authToken.hashCode();
+    }
 
-        Task<Void> exchangeTask = mFirebaseAuth.signInWithCustomToken(
-                mStorageHelpers.getUnsignedJWT(builder.build().getPayload()))
-                .continueWithTask(VOID_CONTINUATION);
+    @WorkerThread
+    @NonNull
+    private Task<MigrationResult> exchangeSession(
+            @NonNull RedeemableDigitsSessionBuilder builder, final boolean cleanupDigitsSession,
+            @NonNull final MigrationTimeline timeline, @NonNull final Executor executor) {
+        timeline.begin(MigrationPhase.ENCODE);
+        final RedeemableDigitsSession session;
+        final String jwt;
+        try {
+            session = builder.build();
+            jwt = mStorageHelpers.getUnsignedJWT(session);
+        } finally {
+            timeline.end(MigrationPhase.ENCODE);
+        }
+
+        // Other processes of the app may be migrating the same session. Waiting on them is
+        // bounded like waiting on an exchange.
+        final long timeoutMillis = mAdaptiveDeadline.getDeadlineMillis();
+        return mExchangeLock.acquire(executor, mScheduler, timeoutMillis).continueWithTask(executor,
+                new Continuation<ExchangeLock.Holder, Task<MigrationResult>>() {
+                    @Override
+                    public Task<MigrationResult> then(@NonNull Task<ExchangeLock.Holder> task)
+                            throws Exception {
+                        if (task.getException() instanceof ExchangeLockTimeoutException) {
+                            Log.d(TAG, "Digits session is still being exchanged elsewhere");
+                            // The legacy session is retained to permit retries.
+                            return complete(MigrationResult.Status.TRANSIENT_FAILURE, null,
+                                    task.getException(), false, timeline, executor);
+                        }
+                        return exchangeSession(session, jwt, getResult(task),
+                                cleanupDigitsSession, timeline, executor);
+                    }
+                });
+    }
+
+    /**
+     * Exchanges the session unless the process that held the lock before got an answer for it.
+     * Releases the lock once the outcome is recorded. The exchange phase starts once the lock is
+     * held, and ends on every path out of here.
+     */
+    @WorkerThread
+    @NonNull
+    private Task<MigrationResult> exchangeSession(
+            @NonNull final RedeemableDigitsSession session, @NonNull String jwt,
+            @NonNull final ExchangeLock.Holder lock, final boolean cleanupDigitsSession,
+            @NonNull final MigrationTimeline timeline, @NonNull final Executor executor) {
+        timeline.begin(MigrationPhase.EXCHANGE);
+        final ExchangeLock.RecordedOutcome outcome;
+        final Task<AuthResult> exchange;
+        try {
+            outcome = lock.getRecordedOutcome(session);
+            exchange = outcome == null ? exchange(session, jwt, executor) : null;
+        } catch (RuntimeException e) {
+            timeline.end(MigrationPhase.EXCHANGE);
+            lock.release();
+            throw e;
+        }
+        if (outcome != null) {
+            lock.release();
+            timeline.end(MigrationPhase.EXCHANGE);
+            Log.d(TAG, "Digits session was exchanged by another process: " + outcome.mStatus);
+            return complete(outcome.mStatus, null, outcome.mException, cleanupDigitsSession,
+                    timeline, executor);
+        }
+        return exchange.continueWithTask(executor,
+                new Continuation<AuthResult, Task<MigrationResult>>() {
+                    @Override
+                    public Task<MigrationResult> then(@NonNull Task<AuthResult> task) {
+                        timeline.end(MigrationPhase.EXCHANGE);
+                        try {
+                            recordOutcome(session, lock, task);
+                        } finally {
+                            lock.release();
+                        }
+                        if (task.isSuccessful()) {
+                            return complete(MigrationResult.Status.EXCHANGED,
+                                    task.getResult().getUser(), null, cleanupDigitsSession,
+                                    timeline, executor);
+                        }
+                        final Exception exception = task.getException();
+                        if (isSessionRejected(exception)) {
+                            Log.d(TAG, "Digits session deemed invalid by server");
+                            return complete(MigrationResult.Status.REJECTED, null, exception,
+                                    cleanupDigitsSession, timeline, executor);
+                        }
+                        // The legacy session is retained to permit retries.
+                        return complete(MigrationResult.Status.TRANSIENT_FAILURE, null,
+                                exception, false, timeline, executor);
+                    }
+                });
+    }
+
+    /**
+     * Clears the legacy session if asked to, and unless the migration settled already, then
+     * creates the result of the run. The result is only available once the cleared session store
+     * is on disk.
+     */
+    @NonNull
+    private Task<MigrationResult> complete(@NonNull final MigrationResult.Status status,
+                                           @Nullable final FirebaseUser user,
+                                           @Nullable final Exception exception,
+                                           boolean cleanupDigitsSession,
+                                           @NonNull final MigrationTimeline timeline,
+                                           @NonNull Executor executor) {
+        if (!cleanupDigitsSession) {
+            return Tasks.forResult(createResult(status, user, exception, timeline));
+        }
+        timeline.begin(MigrationPhase.CLEANUP);
+        if (mStorageHelpers.isMigrationSettled()) {
+            timeline.end(MigrationPhase.CLEANUP);
+            return Tasks.forResult(createResult(status, user, exception, timeline));
+        }
+        Log.d(TAG, "Clearing legacy session");
+        return mStorageHelpers.clearDigitsSessionAsync(executor).continueWith(executor,
+                new Continuation<Void, MigrationResult>() {
+                    @Override
+                    public MigrationResult then(@NonNull Task<Void> task) {
+                        timeline.end(MigrationPhase.CLEANUP);
+                        if (!task.isSuccessful()) {
+                            // The next migration finds the session again and retries.
+                            Log.w(TAG, "Unable to clear legacy session", task.getException());
+                        }
+                        return createResult(status, user, exception, timeline);
+                    }
+                });
+    }
 
-        return cleanupDigitsSession
-                ? exchangeTask.continueWithTask(mClearSessionContinuation)
-                : exchangeTask;
+    @NonNull
+    private MigrationResult createResult(@NonNull MigrationResult.Status status,
+                                         @Nullable FirebaseUser user,
+                                         @Nullable Exception exception,
+                                         @NonNull MigrationTimeline timeline) {
+        mStats.recordResult(status);
+        return new MigrationResult(status, user, exception, timeline.getDurationNanos());
     }
 
     /**
@@ -242,17 +756,307 @@ public final class AuthMigrator {
      * </ol>
      */
     public Task<Void> migrate(@NonNull RedeemableDigitsSessionBuilder builder) {
-        return mFirebaseAuth.signInWithCustomToken(
-                mStorageHelpers.getUnsignedJWT(builder.build().getPayload()))
-                .continueWithTask(VOID_CONTINUATION);
+        final MigrationTimeline timeline = new MigrationTimeline(mMigrationListener);
+        timeline.begin(MigrationPhase.ENCODE);
+        final RedeemableDigitsSession session;
+        final String jwt;
+        try {
+            session = builder.build();
+            jwt = mStorageHelpers.getUnsignedJWT(session);
+        } finally {
+            timeline.end(MigrationPhase.ENCODE);
+        }
+
+        timeline.begin(MigrationPhase.EXCHANGE);
+        // The rejected sessions are read from disk, off the calling thread.
+        return VOID_TASK.continueWithTask(mDefaultExecutor,
+                new Continuation<Void, Task<AuthResult>>() {
+                    @Override
+                    public Task<AuthResult> then(@NonNull Task<Void> task) {
+                        return exchange(session, jwt, mDefaultExecutor);
+                    }
+                }).continueWithTask(mDefaultExecutor,
+                new Continuation<AuthResult, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(@NonNull Task<AuthResult> task) {
+                        timeline.end(MigrationPhase.EXCHANGE);
+                        if (task.isSuccessful()) {
+                            mStats.recordResult(MigrationResult.Status.EXCHANGED);
+                            return VOID_TASK;
+                        }
+                        mStats.recordResult(isSessionRejected(task.getException())
+                                ? MigrationResult.Status.REJECTED
+                                : MigrationResult.Status.TRANSIENT_FAILURE);
+                        return Tasks.forException(task.getException());
+                    }
+                });
+    }
+
+    /**
+     * Migrates several Digits sessions provided by the caller, see
+     * {@link #migrate(RedeemableDigitsSessionBuilder)}. Every successful exchange signs its user
+     * in, replacing the current user. With a single exchange in flight, sessions are signed in in
+     * iteration order and the last successful one wins. With more, exchanges race and the current
+     * user is whichever completed last.
+     * <p>
+     * Sessions are built and encoded on the background thread used by {@link #migrate(boolean)}.
+     * Use {@link #migrateAll(Collection, int, BatchMigrationListener, Executor)} to provide
+     * another executor.
+     *
+     * @param builders               sessions to exchange
+     * @param maxConcurrentExchanges how many exchanges may be in flight at once, at least 1
+     * @param listener               notified of each result as soon as it is known, or null
+     * @return task resolving to the results, in the iteration order of builders. A builder that
+     * cannot build a session gets a {@link MigrationResult.Status#CORRUPT_SESSION} result and
+     * does not fail the batch.
+     */
+    public Task<List<MigrationResult>> migrateAll(
+            @NonNull Collection<RedeemableDigitsSessionBuilder> builders,
+            int maxConcurrentExchanges, @Nullable BatchMigrationListener listener) {
+        return migrateAll(builders, maxConcurrentExchanges, listener, mDefaultExecutor);
     }
 
-    private Task<Void> cleanupAndCreateEmptyResult(boolean cleanupDigitsSession) {
-        if(cleanupDigitsSession) {
-            Log.d(TAG, "Clearing legacy session");
-            mStorageHelpers.clearDigitsSession();
+    /**
+     * Same as {@link #migrateAll(Collection, int, BatchMigrationListener)}, building and encoding
+     * the sessions on the provided executor. With a multi-threaded executor, that work runs in
+     * parallel as well.
+     */
+    public Task<List<MigrationResult>> migrateAll(
+            @NonNull Collection<RedeemableDigitsSessionBuilder> builders,
+            int maxConcurrentExchanges, @Nullable BatchMigrationListener listener,
+            @NonNull Executor executor) {
+        if (maxConcurrentExchanges < 1) {
+            throw new IllegalArgumentException("maxConcurrentExchanges must be at least 1");
+        }
+        return new BatchMigration(new ArrayList<>(builders), listener, executor)
+                .start(maxConcurrentExchanges);
+    }
+
+    /**
+     * Sets how exchanges that fail for transient reasons are retried. Without a policy, which is
+     * the default, they are not retried and the legacy session is kept for the app to try again.
+     * <p>
+     * The policy applies to migrations started after this call.
+     *
+     * @param retryPolicy policy to apply, or null to disable retries
+     */
+    public void setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets which devices exchange their legacy session in {@link #migrate(boolean)} and
+     * {@link #migrateForResult(boolean)}, and how long they wait before doing so, to ramp up
+     * the load on the exchange backend. Devices outside the rollout get a
+     * {@link MigrationResult.Status#NOT_ROLLED_OUT} result and keep their legacy session, whatever
+     * the cleanup choice. Sessions provided to {@link #migrate(RedeemableDigitsSessionBuilder)} and
+     * {@link #migrateAll} are not gated.
+     * <p>
+     * The policy applies to migrations started after this call.
+     *
+     * @param rolloutPolicy policy to apply, or null to exchange on every device right away, which
+     *                      is the default
+     */
+    public void setRolloutPolicy(@Nullable RolloutPolicy rolloutPolicy) {
+        mRolloutPolicy = rolloutPolicy;
+    }
+
+    /**
+     * Sets when migrations kicked off by {@link #migrate(boolean)} and
+     * {@link #migrateForResult(boolean)} begin their work, e.g. to keep them from competing with
+     * the first frame when started from {@link android.app.Application#onCreate()}. Deadlines
+     * of {@link #migrateForResult(boolean, CancellationSignal)} count from the call, including
+     * the time the migration is deferred.
+     * <p>
+     * The schedule applies to migrations kicked off after this call. The default is
+     * {@link MigrationSchedule#EAGER}.
+     *
+     * @param schedule when to begin
+     */
+    public void setMigrationSchedule(@NonNull MigrationSchedule schedule) {
+        mMigrationSchedule = schedule;
+    }
+
+    /**
+     * Sets the listener notified of the phases of {@link #migrate(boolean)},
+     * {@link #migrateForResult(boolean)} and {@link #migrate(RedeemableDigitsSessionBuilder)}
+     * runs. The exchange phase spans the whole sign in, including retries. Batches started by
+     * {@link #migrateAll} are not reported.
+     * <p>
+     * The listener applies to migrations started after this call. Without one, which is the
+     * default, phases are not reported.
+     *
+     * @param listener listener to notify, or null to stop reporting
+     */
+    public void setMigrationListener(@Nullable MigrationListener listener) {
+        mMigrationListener = listener;
+    }
+
+    /**
+     * Enables {@link android.os.Trace} sections named after the {@link MigrationPhase}s of
+     * migrations started afterwards, for systrace and Perfetto. The exchange and cleanup are
+     * traced as async sections where the platform supports it. Tracing is disabled by default and
+     * has no effect before API 18.
+     *
+     * @param enabled whether to trace migrations, typically only in debug or profiling builds
+     */
+    public static void setTracingEnabled(boolean enabled) {
+        MigrationTrace.setEnabled(enabled);
+    }
+
+    /**
+     * Gets counters of the migrations run by this instance since the process started: how many
+     * completed with each {@link MigrationResult.Status}, how many exchanges were sent and a
+     * histogram of their round trip times. Recording them takes no locks and is always on.
+     *
+     * @return an immutable copy of the counters, e.g. to forward to analytics
+     */
+    @NonNull
+    public MigrationStats getStatsSnapshot() {
+        return mStats.snapshot();
+    }
+
+    /**
+     * Exchanges the session unless the server rejected it recently, and remembers rejections.
+     */
+    @WorkerThread
+    @NonNull
+    private Task<AuthResult> exchange(@NonNull final RedeemableDigitsSession session,
+                                      @NonNull String jwt, @NonNull Executor executor) {
+        final FirebaseWebRequestException rejection = mRejectedSessions.getRejection(session);
+        if (rejection != null) {
+            Log.d(TAG, "Digits session was rejected recently. Skipping exchange.");
+            return Tasks.forException(rejection);
+        }
+        return exchange(jwt, executor).addOnCompleteListener(executor,
+                new OnCompleteListener<AuthResult>() {
+                    @Override
+                    public void onComplete(@NonNull Task<AuthResult> task) {
+                        final Exception exception = task.getException();
+                        if (isSessionRejected(exception)) {
+                            mRejectedSessions.recordRejection(session,
+                                    ((FirebaseWebRequestException) exception)
+                                            .getHttpStatusCode());
+                        }
+                    }
+                });
+    }
+
+    @NonNull
+    private Task<AuthResult> exchange(@NonNull String jwt, @NonNull Executor executor) {
+        final RetryPolicy retryPolicy = mRetryPolicy;
+        return retryPolicy == null
+                ? signIn(jwt, executor)
+                : exchange(jwt, executor, retryPolicy, 1, System.nanoTime());
+    }
+
+    @NonNull
+    private Task<AuthResult> exchange(@NonNull final String jwt, @NonNull final Executor executor,
+                                      @NonNull final RetryPolicy retryPolicy, final int attempt,
+                                      final long startNanos) {
+        return signIn(jwt, executor).continueWithTask(executor,
+                new Continuation<AuthResult, Task<AuthResult>>() {
+                    @Override
+                    public Task<AuthResult> then(@NonNull Task<AuthResult> task) {
+                        if (task.isSuccessful()) {
+                            return task;
+                        }
+                        final long delayMillis = retryPolicy.getRetryDelayMillis(attempt,
+                                task.getException(), TimeUnit.NANOSECONDS.toMillis(
+                                        System.nanoTime() - startNanos));
+                        if (delayMillis == RetryPolicy.NO_RETRY) {
+                            return task;
+                        }
+                        Log.d(TAG, "Retrying digits session exchange in " + delayMillis + "ms");
+                        return delay(delayMillis).continueWithTask(executor,
+                                new Continuation<Void, Task<AuthResult>>() {
+                                    @Override
+                                    public Task<AuthResult> then(@NonNull Task<Void> task) {
+                                        return exchange(jwt, executor, retryPolicy, attempt + 1,
+                                                startNanos);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Sends a single exchange, recording it in the stats, unless the exchange backend has been
+     * failing.
+     */
+    @WorkerThread
+    @NonNull
+    private Task<AuthResult> signIn(@NonNull String jwt, @NonNull Executor executor) {
+        if (!mCircuitBreaker.tryAcquire()) {
+            Log.d(TAG, "Exchanges are paused. Skipping exchange.");
+            return Tasks.forException(new ExchangeCircuitOpenException());
+        }
+        mStats.recordExchangeAttempt();
+        final long startNanos = System.nanoTime();
+        final Task<AuthResult> signIn;
+        try {
+            signIn = mFirebaseAuth.signInWithCustomToken(jwt);
+        } catch (RuntimeException e) {
+            // Otherwise a probe of the breaker would stay in flight, and keep exchanges paused.
+            mCircuitBreaker.onExchangeComplete(e);
+            throw e;
+        }
+        return signIn.addOnCompleteListener(executor,
+                new OnCompleteListener<AuthResult>() {
+                    @Override
+                    public void onComplete(@NonNull Task<AuthResult> task) {
+                        final long latencyNanos = System.nanoTime() - startNanos;
+                        mCircuitBreaker.onExchangeComplete(task.getException());
+                        mStats.recordExchangeLatency(latencyNanos);
+                        // Failures such as a missing network tend to be quick, leave them out.
+                        if (task.isSuccessful()) {
+                            mAdaptiveDeadline.recordExchangeLatency(latencyNanos);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns the result of a completed task, or throws its exception.
+     */
+    private static <T> T getResult(@NonNull Task<T> task) throws Exception {
+        if (!task.isSuccessful()) {
+            throw task.getException();
+        }
+        return task.getResult();
+    }
+
+    /**
+     * Records the answers the server gave for the session, so that processes waiting for the
+     * lock do not exchange it again. Other failures are left for them to retry.
+     */
+    @WorkerThread
+    private static void recordOutcome(@NonNull RedeemableDigitsSession session,
+                                      @NonNull ExchangeLock.Holder lock,
+                                      @NonNull Task<AuthResult> task) {
+        if (task.isSuccessful()) {
+            lock.recordOutcome(session, 0);
+        } else if (isSessionRejected(task.getException())) {
+            lock.recordOutcome(session,
+                    ((FirebaseWebRequestException) task.getException()).getHttpStatusCode());
         }
-        return VOID_TASK;
+    }
+
+    private static boolean isSessionRejected(@Nullable Exception exception) {
+        return exception instanceof FirebaseWebRequestException
+                && ((FirebaseWebRequestException) exception).isSessionRejected();
+    }
+
+    @NonNull
+    private Task<Void> delay(long delayMillis) {
+        final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                source.setResult(null);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return source.getTask();
     }
 
     /**
@@ -267,18 +1071,281 @@ public final class AuthMigrator {
 
     /**
      * Clears the auth token from the legacy SDK.  Uses the FirebaseApp's name (or 'default' for
-     * the default mApp) as the persistence key.
+     * the default mApp) as the persistence key. The cleared store is written to disk before this
+     * returns.
      */
     public void clearLegacyAuth() {
         mStorageHelpers.clearDigitsSession();
     }
 
+    /**
+     * The legacy session as found by {@link #readLegacySession}.
+     */
+    private static final class LegacySession {
+        final boolean mSettled;
+        @Nullable
+        final String mJson;
+        // Null if the session is corrupt, or was not parsed because a user is signed in.
+        @Nullable
+        final RedeemableDigitsSessionBuilder mParsed;
+
+        LegacySession(boolean settled, @Nullable String json,
+                      @Nullable RedeemableDigitsSessionBuilder parsed) {
+            mSettled = settled;
+            mJson = json;
+            mParsed = parsed;
+        }
+    }
+
+    /**
+     * Waits for a migration until a deadline or a cancellation, whichever comes first. The
+     * deadline timer and the adaptive deadline lookup run on the scheduler thread.
+     */
+    private final class DeadlineWait implements Runnable, OnCompleteListener<MigrationResult>,
+            CancellationSignal.OnCancelListener {
+        private final long mStartNanos = System.nanoTime();
+        private final long mDeadlineMillis;
+        @Nullable
+        private final CancellationSignal mCancellationSignal;
+        @NonNull
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        @NonNull
+        private final TaskCompletionSource<MigrationResult> mSource =
+                new TaskCompletionSource<>();
+        @Nullable
+        private volatile ScheduledFuture<?> mTimeout;
+
+        DeadlineWait(long deadlineMillis, @Nullable CancellationSignal cancellationSignal) {
+            mDeadlineMillis = deadlineMillis;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @NonNull
+        Task<MigrationResult> start(@NonNull Task<MigrationResult> migration) {
+            if (mCancellationSignal != null) {
+                // Invoked right away if already canceled.
+                mCancellationSignal.setOnCancelListener(this);
+            }
+            migration.addOnCompleteListener(mDefaultExecutor, this);
+            if (!mDone.get()) {
+                mScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleTimeout();
+                    }
+                });
+            }
+            return mSource.getTask();
+        }
+
+        private void scheduleTimeout() {
+            final long deadlineMillis = mDeadlineMillis == ADAPTIVE_DEADLINE
+                    ? mAdaptiveDeadline.getDeadlineMillis()
+                    : mDeadlineMillis;
+            final long remainingMillis = deadlineMillis
+                    - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+            if (!mDone.get()) {
+                mTimeout = mScheduler.schedule(this, Math.max(0, remainingMillis),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // The deadline passed.
+        @Override
+        public void run() {
+            if (finish(false)) {
+                Log.d(TAG, "Migration deadline passed, it goes on in the background");
+                mSource.setResult(new MigrationResult(MigrationResult.Status.PENDING, null,
+                        null, new long[MigrationPhase.values().length]));
+            }
+        }
+
+        @Override
+        public void onComplete(@NonNull Task<MigrationResult> task) {
+            if (finish(false)) {
+                if (task.isSuccessful()) {
+                    mSource.setResult(task.getResult());
+                } else {
+                    mSource.setException(task.getException());
+                }
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            if (finish(true)) {
+                mSource.setException(new OperationCanceledException());
+            }
+        }
+
+        /**
+         * @return true for the first outcome, which then owns the returned task
+         */
+        private boolean finish(boolean canceled) {
+            if (!mDone.compareAndSet(false, true)) {
+                return false;
+            }
+            final ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            // Clearing the listener from within onCancel() would wait for itself to return.
+            if (mCancellationSignal != null && !canceled) {
+                mCancellationSignal.setOnCancelListener(null);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Runs the exchanges of a {@link #migrateAll} call. Each of the first maxConcurrentExchanges
+     * sessions starts a lane, and a lane picks the next pending session when its exchange
+     * completes.
+     */
+    private final class BatchMigration {
+        @NonNull
+        private final List<RedeemableDigitsSessionBuilder> mBuilders;
+        @Nullable
+        private final BatchMigrationListener mListener;
+        @NonNull
+        private final Executor mExecutor;
+        @NonNull
+        private final MigrationResult[] mResults;
+        @NonNull
+        private final AtomicInteger mNextIndex = new AtomicInteger();
+        @NonNull
+        private final AtomicInteger mRemaining;
+        @NonNull
+        private final TaskCompletionSource<List<MigrationResult>> mSource =
+                new TaskCompletionSource<>();
+
+        BatchMigration(@NonNull List<RedeemableDigitsSessionBuilder> builders,
+                       @Nullable BatchMigrationListener listener, @NonNull Executor executor) {
+            mBuilders = builders;
+            mListener = listener;
+            mExecutor = executor;
+            mResults = new MigrationResult[builders.size()];
+            mRemaining = new AtomicInteger(builders.size());
+        }
+
+        @NonNull
+        Task<List<MigrationResult>> start(int maxConcurrentExchanges) {
+            if (mBuilders.isEmpty()) {
+                mSource.setResult(new ArrayList<MigrationResult>());
+            }
+            for (int i = 0; i < Math.min(maxConcurrentExchanges, mBuilders.size()); i++) {
+                startNext();
+            }
+            return mSource.getTask();
+        }
+
+        private void startNext() {
+            final int index = mNextIndex.getAndIncrement();
+            if (index >= mBuilders.size()) {
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    migrate(index);
+                }
+            });
+        }
+
+        @WorkerThread
+        private void migrate(final int index) {
+            final MigrationTimeline timeline = new MigrationTimeline(null);
+            final RedeemableDigitsSession session;
+            final String jwt;
+            timeline.begin(MigrationPhase.ENCODE);
+            try {
+                session = mBuilders.get(index).build();
+                jwt = mStorageHelpers.getUnsignedJWT(session);
+            } catch (RuntimeException e) {
+                // Missing keys, or a null or broken builder. Every lane must finish.
+                timeline.end(MigrationPhase.ENCODE);
+                Log.d(TAG, "Digits session " + index + " is invalid", e);
+                finish(index, new MigrationResult(MigrationResult.Status.CORRUPT_SESSION, null,
+                        e, timeline.getDurationNanos()));
+                return;
+            }
+            timeline.end(MigrationPhase.ENCODE);
+
+            timeline.begin(MigrationPhase.EXCHANGE);
+            final Task<AuthResult> exchange;
+            try {
+                exchange = exchange(session, jwt, mExecutor);
+            } catch (RuntimeException e) {
+                timeline.end(MigrationPhase.EXCHANGE);
+                Log.w(TAG, "Unable to exchange digits session " + index, e);
+                finish(index, new MigrationResult(MigrationResult.Status.TRANSIENT_FAILURE, null,
+                        e, timeline.getDurationNanos()));
+                return;
+            }
+            exchange.addOnCompleteListener(mExecutor,
+                    new OnCompleteListener<AuthResult>() {
+                        @Override
+                        public void onComplete(@NonNull Task<AuthResult> task) {
+                            timeline.end(MigrationPhase.EXCHANGE);
+                            final MigrationResult result;
+                            if (task.isSuccessful()) {
+                                result = new MigrationResult(MigrationResult.Status.EXCHANGED,
+                                        task.getResult().getUser(), null,
+                                        timeline.getDurationNanos());
+                            } else {
+                                result = new MigrationResult(
+                                        isSessionRejected(task.getException())
+                                                ? MigrationResult.Status.REJECTED
+                                                : MigrationResult.Status.TRANSIENT_FAILURE,
+                                        null, task.getException(), timeline.getDurationNanos());
+                            }
+                            finish(index, result);
+                        }
+                    });
+        }
+
+        private void finish(int index, @NonNull MigrationResult result) {
+            mStats.recordResult(result.getStatus());
+            mResults[index] = result;
+            if (mListener != null) {
+                try {
+                    mListener.onMigrationResult(index, result);
+                } catch (RuntimeException e) {
+                    // The lane must still pick its next session and the batch complete.
+                    Log.w(TAG, "Batch migration listener failed for session " + index, e);
+                }
+            }
+            // The decrement publishes every result written before it to the last lane.
+            if (mRemaining.decrementAndGet() == 0) {
+                mSource.setResult(Arrays.asList(mResults));
+            } else {
+                startNext();
+            }
+        }
+    }
+
     @VisibleForTesting(otherwise = PRIVATE)
     AuthMigrator(@NonNull FirebaseApp app, @NonNull StorageHelpers storageHelper,
-                 @NonNull FirebaseAuth firebaseAuth) {
-        mApp = app;
+                 @NonNull FirebaseAuth firebaseAuth, @NonNull Executor defaultExecutor) {
+        this(app, storageHelper, firebaseAuth, defaultExecutor,
+                new ExchangeCircuitBreaker(storageHelper), new ExchangeLock(storageHelper),
+                new RejectedSessionCache(storageHelper));
+    }
+
+    private AuthMigrator(@NonNull FirebaseApp app, @NonNull StorageHelpers storageHelper,
+                         @NonNull FirebaseAuth firebaseAuth, @NonNull Executor defaultExecutor,
+                         @NonNull ExchangeCircuitBreaker circuitBreaker,
+                         @NonNull ExchangeLock exchangeLock,
+                         @NonNull RejectedSessionCache rejectedSessions) {
+        mApp = new WeakReference<>(app);
+        mApplicationContext = app.getApplicationContext();
         mStorageHelpers = storageHelper;
         mFirebaseAuth = firebaseAuth;
-        mClearSessionContinuation = new ClearSessionContinuation(mStorageHelpers);
+        mDefaultExecutor = defaultExecutor;
+        mScheduler = BackgroundExecutor.getScheduler();
+        mAdaptiveDeadline = new AdaptiveDeadline(storageHelper);
+        mRejectedSessions = rejectedSessions;
+        mCircuitBreaker = circuitBreaker;
+        mExchangeLock = exchangeLock;
     }
 }
\ No newline at end of file
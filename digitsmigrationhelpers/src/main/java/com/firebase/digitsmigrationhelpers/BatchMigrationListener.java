@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Notified of each result of an {@link AuthMigrator#migrateAll} call as soon as it is known.
+ * Callbacks are made on the executor running the batch, possibly from several threads. An
+ * exception thrown by a callback is logged and does not stop the batch.
+ */
+public interface BatchMigrationListener {
+    /**
+     * @param index  position of the session in the collection passed to migrateAll
+     * @param result outcome of that session's exchange
+     */
+    void onMigrationResult(int index, @NonNull MigrationResult result);
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending exchanges for a while once the exchange backend failed
+ * {@link #FAILURE_THRESHOLD} times in a row, so that an outage is not made worse by every cold
+ * start of every device. When the pause is over a single probe exchange is let through: it
+ * resumes exchanges if it gets an answer and pauses them again if it fails.
+ * <p>
+ * The state is persisted, so that it survives process restarts, and shared by the
+ * {@link AuthMigrator}s of all {@link com.google.firebase.FirebaseApp}s.
+ */
+final class ExchangeCircuitBreaker {
+    static final int FAILURE_THRESHOLD = 3;
+    static final long PAUSE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final String TAG = "DigitsCircuitBreaker";
+
+    @NonNull
+    private static final Object sLock = new Object();
+    @Nullable
+    private static ExchangeCircuitBreaker sInstance;
+
+    @NonNull
+    private final StorageHelpers mStorageHelpers;
+    @NonNull
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private boolean mLoaded;
+    private int mFailureCount;
+    private long mPausedUntilMillis;
+    private boolean mProbeInFlight;
+
+    @NonNull
+    static ExchangeCircuitBreaker getInstance(@NonNull StorageHelpers storageHelpers) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new ExchangeCircuitBreaker(storageHelpers);
+            }
+            return sInstance;
+        }
+    }
+
+    ExchangeCircuitBreaker(@NonNull StorageHelpers storageHelpers) {
+        mStorageHelpers = storageHelpers;
+    }
+
+    /**
+     * @return whether an exchange may be sent now, in which case its outcome must be passed to
+     * {@link #onExchangeComplete(Exception)}
+     */
+    @WorkerThread
+    boolean tryAcquire() {
+        final long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            loadLocked();
+            if (mFailureCount < FAILURE_THRESHOLD) {
+                return true;
+            }
+            // A pause longer than PAUSE_MILLIS means the clock was set back, don't trust it.
+            if (now < mPausedUntilMillis && mPausedUntilMillis - now <= PAUSE_MILLIS) {
+                return false;
+            }
+            if (mProbeInFlight) {
+                return false;
+            }
+            mProbeInFlight = true;
+            return true;
+        }
+    }
+
+    /**
+     * @param exception why the exchange failed, or null if it succeeded
+     */
+    @WorkerThread
+    void onExchangeComplete(@Nullable Exception exception) {
+        synchronized (mLock) {
+            loadLocked();
+            mProbeInFlight = false;
+            if (!(exception instanceof FirebaseWebRequestException)) {
+                // A success resumes exchanges. Other failures, such as a missing network, say
+                // nothing about the backend.
+                if (exception == null) {
+                    resetLocked();
+                }
+                return;
+            }
+            if (!((FirebaseWebRequestException) exception).isTransient()) {
+                // The backend answered.
+                resetLocked();
+                return;
+            }
+            mFailureCount++;
+            if (mFailureCount >= FAILURE_THRESHOLD) {
+                Log.d(TAG, "Exchange backend keeps failing. Pausing exchanges.");
+                mPausedUntilMillis = System.currentTimeMillis() + PAUSE_MILLIS;
+            }
+            mStorageHelpers.putExchangeFailureState(mFailureCount, mPausedUntilMillis);
+        }
+    }
+
+    private void resetLocked() {
+        if (mFailureCount != 0) {
+            mFailureCount = 0;
+            mPausedUntilMillis = 0;
+            mStorageHelpers.putExchangeFailureState(0, 0);
+        }
+    }
+
+    private void loadLocked() {
+        if (!mLoaded) {
+            mFailureCount = mStorageHelpers.getExchangeFailureCount();
+            mPausedUntilMillis = mStorageHelpers.getExchangePausedUntilMillis();
+            mLoaded = true;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.firebase.digitsmigrationhelpers.internal.ExchangeLockTimeoutException;
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets a single process of the app exchange the legacy session at a time, and tells the processes
+ * that waited what came out of it. Apps that migrate from several processes would otherwise send
+ * the same session from each of them.
+ * <p>
+ * Shared by the {@link AuthMigrator}s of all {@link com.google.firebase.FirebaseApp}s, as the
+ * file lock can only be held once per process.
+ */
+final class ExchangeLock {
+    static final long POLL_MILLIS = 100;
+    static final long OUTCOME_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final String TAG = "DigitsExchangeLock";
+    private static final String PROCESS_KEY = "pid";
+    private static final String SESSION_KEY = "session";
+    private static final String RECORDED_AT_KEY = "at";
+    private static final String STATUS_CODE_KEY = "status";
+
+    @NonNull
+    private static final Object sLock = new Object();
+    @Nullable
+    private static ExchangeLock sInstance;
+
+    @NonNull
+    private final StorageHelpers mStorageHelpers;
+    // Lets the threads of this process take turns on the file lock.
+    @NonNull
+    private final AtomicBoolean mHeld = new AtomicBoolean();
+
+    @NonNull
+    static ExchangeLock getInstance(@NonNull StorageHelpers storageHelpers) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new ExchangeLock(storageHelpers);
+            }
+            return sInstance;
+        }
+    }
+
+    ExchangeLock(@NonNull StorageHelpers storageHelpers) {
+        mStorageHelpers = storageHelpers;
+    }
+
+    /**
+     * Waits for the lock without blocking a thread, polling every {@link #POLL_MILLIS}.
+     *
+     * @param timeoutMillis how long to keep polling after the first attempt failed
+     * @return task completing once the lock is held, which must then be released, or failing
+     * with {@link ExchangeLockTimeoutException} once the timeout passed
+     */
+    @NonNull
+    Task<Holder> acquire(@NonNull Executor executor, @NonNull ScheduledExecutorService scheduler,
+                         long timeoutMillis) {
+        final TaskCompletionSource<Holder> source = new TaskCompletionSource<>();
+        executor.execute(new Attempt(source, executor, scheduler,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+        return source.getTask();
+    }
+
+    @WorkerThread
+    @Nullable
+    private Holder tryAcquire() {
+        if (!mHeld.compareAndSet(false, true)) {
+            return null;
+        }
+        final Closeable fileLock;
+        try {
+            fileLock = mStorageHelpers.tryLockExchange();
+        } catch (IOException | RuntimeException e) {
+            // Better an exchange per process than none at all.
+            Log.w(TAG, "Unable to lock exchanges across processes", e);
+            return new Holder(null);
+        }
+        if (fileLock == null) {
+            mHeld.set(false);
+            return null;
+        }
+        return new Holder(fileLock);
+    }
+
+    private final class Attempt implements Runnable {
+        @NonNull
+        private final TaskCompletionSource<Holder> mSource;
+        @NonNull
+        private final Executor mExecutor;
+        @NonNull
+        private final ScheduledExecutorService mScheduler;
+        private final long mDeadlineNanos;
+
+        Attempt(@NonNull TaskCompletionSource<Holder> source, @NonNull Executor executor,
+                @NonNull ScheduledExecutorService scheduler, long deadlineNanos) {
+            mSource = source;
+            mExecutor = executor;
+            mScheduler = scheduler;
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void run() {
+            final Holder holder;
+            try {
+                holder = tryAcquire();
+            } catch (RuntimeException e) {
+                mSource.setException(e);
+                return;
+            }
+            if (holder != null) {
+                mSource.setResult(holder);
+                return;
+            }
+            if (System.nanoTime() - mDeadlineNanos >= 0) {
+                mSource.setException(new ExchangeLockTimeoutException());
+                return;
+            }
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mExecutor.execute(Attempt.this);
+                }
+            }, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The held lock. Every method must be called before {@link #release()}.
+     */
+    final class Holder {
+        // Null when exchanges could not be locked across processes.
+        @Nullable
+        private final Closeable mFileLock;
+
+        private Holder(@Nullable Closeable fileLock) {
+            mFileLock = fileLock;
+        }
+
+        /**
+         * @return what another process got for the session within {@link #OUTCOME_TTL_MILLIS},
+         * or null if this process should exchange it
+         */
+        @WorkerThread
+        @Nullable
+        RecordedOutcome getRecordedOutcome(@NonNull RedeemableDigitsSession session) {
+            if (mFileLock == null) {
+                return null;
+            }
+            final String json = mStorageHelpers.getExchangeOutcome();
+            if (json == null) {
+                return null;
+            }
+            final JSONObject outcome;
+            try {
+                outcome = new JSONObject(json);
+            } catch (JSONException e) {
+                Log.w(TAG, "Dropping unreadable exchange outcome", e);
+                return null;
+            }
+            final long age = System.currentTimeMillis() - outcome.optLong(RECORDED_AT_KEY);
+            // This process knows its own outcomes. A negative age means the clock was set back.
+            if (outcome.optInt(PROCESS_KEY) == Process.myPid()
+                    || age < 0 || age >= OUTCOME_TTL_MILLIS
+                    || !RejectedSessionCache.key(session).equals(outcome.optString(SESSION_KEY))) {
+                return null;
+            }
+            if (!outcome.has(STATUS_CODE_KEY)) {
+                return new RecordedOutcome(MigrationResult.Status.EXCHANGED_IN_OTHER_PROCESS,
+                        null);
+            }
+            return new RecordedOutcome(MigrationResult.Status.REJECTED,
+                    new FirebaseWebRequestException(
+                            "Digits session was rejected in another process",
+                            outcome.optInt(STATUS_CODE_KEY)));
+        }
+
+        /**
+         * Records that the session was exchanged, or rejected with the given status code.
+         *
+         * @param httpStatusCode the status code of the rejection, or 0 if the exchange succeeded
+         */
+        @WorkerThread
+        void recordOutcome(@NonNull RedeemableDigitsSession session, int httpStatusCode) {
+            if (mFileLock == null) {
+                return;
+            }
+            final JSONObject outcome = new JSONObject();
+            try {
+                outcome.put(PROCESS_KEY, Process.myPid())
+                        .put(SESSION_KEY, RejectedSessionCache.key(session))
+                        .put(RECORDED_AT_KEY, System.currentTimeMillis());
+                if (httpStatusCode != 0) {
+                    outcome.put(STATUS_CODE_KEY, httpStatusCode);
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to record exchange outcome", e);
+                return;
+            }
+            mStorageHelpers.putExchangeOutcome(outcome.toString());
+        }
+
+        void release() {
+            if (mFileLock != null) {
+                try {
+                    mFileLock.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to unlock exchanges", e);
+                }
+            }
+            mHeld.set(false);
+        }
+    }
+
+    /**
+     * What another process got for a session, see {@link Holder#getRecordedOutcome}.
+     */
+    static final class RecordedOutcome {
+        @NonNull
+        final MigrationResult.Status mStatus;
+        @Nullable
+        final FirebaseWebRequestException mException;
+
+        RecordedOutcome(@NonNull MigrationResult.Status status,
+                        @Nullable FirebaseWebRequestException exception) {
+            mStatus = status;
+            mException = exception;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Notified when each {@link MigrationPhase} of a migration starts and ends, to find out where the
+ * time of slow migrations goes. Times are {@link System#nanoTime()} values.
+ * <p>
+ * Callbacks are made on the thread running the phase, which is usually the migration executor.
+ * Phases that run in parallel, see {@link MigrationPhase}, may call back concurrently. Callbacks
+ * should return quickly and must not throw.
+ *
+ * @see AuthMigrator#setMigrationListener(MigrationListener)
+ */
+public interface MigrationListener {
+    /**
+     * @param phase      phase that is starting
+     * @param startNanos time the phase started at
+     */
+    void onPhaseStarted(@NonNull MigrationPhase phase, long startNanos);
+
+    /**
+     * @param phase      phase that ended, successfully or not
+     * @param startNanos time the phase started at, as passed to {@link #onPhaseStarted}
+     * @param endNanos   time the phase ended at
+     */
+    void onPhaseEnded(@NonNull MigrationPhase phase, long startNanos, long endNanos);
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+/**
+ * Steps of a {@link AuthMigrator#migrateForResult(boolean)} run, in the order they start.
+ * Reading and parsing the legacy session run alongside the manifest lookup, the other phases run
+ * one after another. A phase that is not needed for a given outcome is skipped.
+ */
+public enum MigrationPhase {
+    /** Checking for and reading the legacy Digits session. */
+    PREFS_READ,
+    /** Looking up the Digits and Fabric keys in the app's AndroidManifest.xml. */
+    MANIFEST_READ,
+    /** Parsing the legacy Digits session. */
+    PARSE,
+    /** Encoding the session as a token the Firebase server can redeem. */
+    ENCODE,
+    /** Exchanging the token with the Firebase server and signing in. */
+    EXCHANGE,
+    /** Clearing the legacy Digits session. */
+    CLEANUP
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.firebase.auth.FirebaseUser;
+
+/**
+ * Outcome of a {@link AuthMigrator#migrateForResult(boolean)} run.
+ */
+public final class MigrationResult {
+    /**
+     * What the migration found and did.
+     */
+    public enum Status {
+        /** A Firebase user was already signed in, no exchange was attempted. */
+        ALREADY_SIGNED_IN,
+        /** No legacy Digits session was found. */
+        NO_SESSION,
+        /** The legacy Digits session could not be parsed. */
+        CORRUPT_SESSION,
+        /** The legacy Digits session was exchanged and the user is now signed in. */
+        EXCHANGED,
+        /**
+         * The Firebase server deemed the legacy Digits session invalid, now or within the last
+         * day. Sessions rejected recently are not sent again.
+         */
+        REJECTED,
+        /**
+         * The exchange failed for reasons that may go away on a later attempt, or was not sent
+         * because the server kept failing recently or another process of the app was still
+         * exchanging the session.
+         */
+        TRANSIENT_FAILURE,
+        /**
+         * The deadline of {@link AuthMigrator#migrateForResult(boolean, long,
+         * android.support.v4.os.CancellationSignal)} passed first. The migration goes on in the
+         * background, see {@link AuthMigrator#getMigrationTask()}.
+         */
+        PENDING,
+        /**
+         * The device is not part of the rollout set by
+         * {@link AuthMigrator#setRolloutPolicy(RolloutPolicy)}. The legacy session was kept.
+         */
+        NOT_ROLLED_OUT,
+        /**
+         * Another process of the app exchanged the legacy Digits session while this one waited
+         * for it. The user is signed in, but this process only sees it once its
+         * {@link com.google.firebase.auth.FirebaseAuth} reloads the user, on its next start.
+         */
+        EXCHANGED_IN_OTHER_PROCESS
+    }
+
+    @NonNull
+    private final Status mStatus;
+    @Nullable
+    private final FirebaseUser mUser;
+    @Nullable
+    private final Exception mException;
+    @NonNull
+    private final long[] mPhaseNanos;
+
+    MigrationResult(@NonNull Status status, @Nullable FirebaseUser user,
+                    @Nullable Exception exception, @NonNull long[] phaseNanos) {
+        mStatus = status;
+        mUser = user;
+        mException = exception;
+        mPhaseNanos = phaseNanos;
+    }
+
+    @NonNull
+    public Status getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return true unless the exchange was attempted and failed, see {@link #getException()}.
+     * True for {@link Status#PENDING}, as nothing failed yet.
+     */
+    public boolean isSuccessful() {
+        return mStatus != Status.REJECTED && mStatus != Status.TRANSIENT_FAILURE;
+    }
+
+    /**
+     * @return the signed in user for {@link Status#ALREADY_SIGNED_IN} and
+     * {@link Status#EXCHANGED}, null otherwise
+     */
+    @Nullable
+    public FirebaseUser getUser() {
+        return mUser;
+    }
+
+    /**
+     * @return the exchange failure for {@link Status#REJECTED} and
+     * {@link Status#TRANSIENT_FAILURE}, why the session could not be built for
+     * {@link Status#CORRUPT_SESSION} results of {@link AuthMigrator#migrateAll}, null otherwise
+     */
+    @Nullable
+    public Exception getException() {
+        return mException;
+    }
+
+    /**
+     * @return the time spent in the phase, in nanoseconds, or 0 if it was skipped. Always 0 for
+     * {@link Status#PENDING}.
+     */
+    public long getPhaseNanos(@NonNull MigrationPhase phase) {
+        return mPhaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return the time spent in all phases, in nanoseconds
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : mPhaseNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "MigrationResult{status=" + mStatus + ", totalNanos=" + getTotalNanos() + "}";
+    }
+}
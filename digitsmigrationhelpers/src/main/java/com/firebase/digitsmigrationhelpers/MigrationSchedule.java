@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+/**
+ * When a migration started by {@link AuthMigrator#migrate(boolean)} or
+ * {@link AuthMigrator#migrateForResult(boolean)} begins its work, see
+ * {@link AuthMigrator#setMigrationSchedule(MigrationSchedule)}. Migrations kicked off from
+ * {@link android.app.Application#onCreate()} can be moved out of the time to first draw this way.
+ */
+public enum MigrationSchedule {
+    /** Right away. This is the default. */
+    EAGER,
+    /**
+     * Once the main thread has drawn its next frame, the first frame of the app when started
+     * from {@link android.app.Application#onCreate()}. Before API 16, once the main thread has
+     * handled the messages queued so far.
+     */
+    AFTER_FIRST_FRAME,
+    /**
+     * Once the main thread has nothing left to do, or after a few seconds if it stays busy.
+     */
+    IDLE,
+    /**
+     * The first time the app asks for the outcome with {@link AuthMigrator#getMigrationTask()} or
+     * {@link AuthMigrator#getMigrationResultTask()}. Until then the migration does no work and the
+     * tasks returned when kicking it off do not complete.
+     */
+    ON_DEMAND
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the counters an {@link AuthMigrator} keeps about its migrations, see
+ * {@link AuthMigrator#getStatsSnapshot()}.
+ * <p>
+ * Counters are copied one by one while migrations may be running, so a snapshot can be off by
+ * the migrations that completed while it was taken.
+ */
+public final class MigrationStats {
+    @NonNull
+    private final long[] mStatusCounts;
+    private final long mExchangeAttemptCount;
+    @NonNull
+    private final long[] mExchangeLatencyBoundsMillis;
+    @NonNull
+    private final long[] mExchangeLatencyCounts;
+
+    MigrationStats(@NonNull long[] statusCounts, long exchangeAttemptCount,
+                   @NonNull long[] exchangeLatencyBoundsMillis,
+                   @NonNull long[] exchangeLatencyCounts) {
+        mStatusCounts = statusCounts;
+        mExchangeAttemptCount = exchangeAttemptCount;
+        mExchangeLatencyBoundsMillis = exchangeLatencyBoundsMillis;
+        mExchangeLatencyCounts = exchangeLatencyCounts;
+    }
+
+    /**
+     * @return how many migrations completed with the status. Each session of an
+     * {@link AuthMigrator#migrateAll} batch counts as one migration. Always 0 for
+     * {@link MigrationResult.Status#PENDING}, those migrations count once they complete.
+     */
+    public long getCount(@NonNull MigrationResult.Status status) {
+        return mStatusCounts[status.ordinal()];
+    }
+
+    /**
+     * @return how many migrations completed, whatever their status
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (long count : mStatusCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return how many exchanges were sent to the Firebase server, including retries
+     */
+    public long getExchangeAttemptCount() {
+        return mExchangeAttemptCount;
+    }
+
+    /**
+     * @return the number of buckets of the exchange latency histogram
+     */
+    public int getExchangeLatencyBucketCount() {
+        return mExchangeLatencyCounts.length;
+    }
+
+    /**
+     * @return the exclusive upper bound of the bucket, in milliseconds. The last bucket has no
+     * bound and returns {@link Long#MAX_VALUE}.
+     */
+    public long getExchangeLatencyBucketUpperBoundMillis(int bucket) {
+        return bucket < mExchangeLatencyBoundsMillis.length
+                ? mExchangeLatencyBoundsMillis[bucket]
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return how many exchange round trips took at least the upper bound of the previous bucket
+     * and less than the upper bound of this one
+     */
+    public long getExchangeLatencyCount(int bucket) {
+        return mExchangeLatencyCounts[bucket];
+    }
+
+    @Override
+    public String toString() {
+        return "MigrationStats{statusCounts=" + Arrays.toString(mStatusCounts)
+                + ", exchangeAttempts=" + mExchangeAttemptCount
+                + ", exchangeLatencyBoundsMillis=" + Arrays.toString(mExchangeLatencyBoundsMillis)
+                + ", exchangeLatencyCounts=" + Arrays.toString(mExchangeLatencyCounts) + "}";
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts migration outcomes and exchange latencies without taking locks, so it can stay on in
+ * release builds.
+ */
+final class MigrationStatsRecorder {
+    // Exclusive upper bounds of the exchange latency buckets, a last bucket takes the rest.
+    @NonNull
+    private static final long[] EXCHANGE_LATENCY_BOUNDS_MILLIS =
+            {100, 250, 500, 1000, 2000, 5000, 10000, 30000};
+
+    @NonNull
+    private final AtomicLongArray mStatusCounts =
+            new AtomicLongArray(MigrationResult.Status.values().length);
+    @NonNull
+    private final AtomicLong mExchangeAttemptCount = new AtomicLong();
+    @NonNull
+    private final AtomicLongArray mExchangeLatencyCounts =
+            new AtomicLongArray(EXCHANGE_LATENCY_BOUNDS_MILLIS.length + 1);
+
+    void recordResult(@NonNull MigrationResult.Status status) {
+        mStatusCounts.incrementAndGet(status.ordinal());
+    }
+
+    void recordExchangeAttempt() {
+        mExchangeAttemptCount.incrementAndGet();
+    }
+
+    void recordExchangeLatency(long nanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < EXCHANGE_LATENCY_BOUNDS_MILLIS.length
+                && millis >= EXCHANGE_LATENCY_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        mExchangeLatencyCounts.incrementAndGet(bucket);
+    }
+
+    @NonNull
+    MigrationStats snapshot() {
+        return new MigrationStats(toArray(mStatusCounts), mExchangeAttemptCount.get(),
+                EXCHANGE_LATENCY_BOUNDS_MILLIS, toArray(mExchangeLatencyCounts));
+    }
+
+    @NonNull
+    private static long[] toArray(@NonNull AtomicLongArray counters) {
+        final long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Measures the time spent in each {@link MigrationPhase} of a single migration run.
+ * <p>
+ * Phases that run concurrently only touch their own slots. A phase may begin and end on different
+ * threads as long as those threads are ordered by the task continuations of the run, and results
+ * are read once the task joining all phases completed. Phase boundaries are forwarded to the
+ * listener, if any, and traced if tracing was enabled when the run started. The exchange and
+ * cleanup may span threads, they are traced as async sections.
+ */
+final class MigrationTimeline {
+    private static final int PHASE_COUNT = MigrationPhase.values().length;
+
+    @NonNull
+    private final long[] mStartNanos = new long[PHASE_COUNT];
+    @NonNull
+    private final long[] mDurationNanos = new long[PHASE_COUNT];
+    @Nullable
+    private final MigrationListener mListener;
+    private final boolean mTracing;
+    private final int mTraceCookie;
+
+    MigrationTimeline(@Nullable MigrationListener listener) {
+        mListener = listener;
+        mTracing = MigrationTrace.isEnabled();
+        mTraceCookie = mTracing ? MigrationTrace.newCookie() : 0;
+    }
+
+    void begin(@NonNull MigrationPhase phase) {
+        final long startNanos = System.nanoTime();
+        mStartNanos[phase.ordinal()] = startNanos;
+        if (mListener != null) {
+            mListener.onPhaseStarted(phase, startNanos);
+        }
+        if (mTracing) {
+            if (isAsync(phase)) {
+                MigrationTrace.beginAsyncSection(phase, mTraceCookie);
+            } else {
+                MigrationTrace.beginSection(phase);
+            }
+        }
+    }
+
+    void end(@NonNull MigrationPhase phase) {
+        if (mTracing) {
+            if (isAsync(phase)) {
+                MigrationTrace.endAsyncSection(phase, mTraceCookie);
+            } else {
+                MigrationTrace.endSection();
+            }
+        }
+        final long endNanos = System.nanoTime();
+        final long startNanos = mStartNanos[phase.ordinal()];
+        mDurationNanos[phase.ordinal()] += endNanos - startNanos;
+        if (mListener != null) {
+            mListener.onPhaseEnded(phase, startNanos, endNanos);
+        }
+    }
+
+    private static boolean isAsync(@NonNull MigrationPhase phase) {
+        return phase == MigrationPhase.EXCHANGE || phase == MigrationPhase.CLEANUP;
+    }
+
+    @NonNull
+    long[] getDurationNanos() {
+        return mDurationNanos.clone();
+    }
+}
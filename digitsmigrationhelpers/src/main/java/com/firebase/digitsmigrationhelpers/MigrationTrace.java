@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.os.Build;
+import android.os.Trace;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emits {@link Trace} sections for migration phases, so they show up by name in systrace and
+ * Perfetto. Disabled by default, see {@link AuthMigrator#setTracingEnabled(boolean)}.
+ * <p>
+ * Phases that start and end on the same thread use regular sections. Phases that span threads
+ * use async sections, which are public from API 29 and hidden before. When neither is available
+ * those phases are not traced.
+ */
+final class MigrationTrace {
+    private static final String TAG = "DigitsMigrationTrace";
+    private static final String SECTION_PREFIX = "DigitsMigration:";
+
+    @NonNull
+    private static final String[] SECTION_NAMES = sectionNames();
+    @NonNull
+    private static final AtomicInteger sNextCookie = new AtomicInteger();
+    private static volatile boolean sEnabled;
+
+    private MigrationTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns a cookie telling apart concurrent async sections of the same phase.
+     */
+    static int newCookie() {
+        return sNextCookie.incrementAndGet();
+    }
+
+    static void beginSection(@NonNull MigrationPhase phase) {
+        Trace.beginSection(SECTION_NAMES[phase.ordinal()]);
+    }
+
+    static void endSection() {
+        Trace.endSection();
+    }
+
+    static void beginAsyncSection(@NonNull MigrationPhase phase, int cookie) {
+        invokeAsync(AsyncSections.BEGIN, phase, cookie);
+    }
+
+    static void endAsyncSection(@NonNull MigrationPhase phase, int cookie) {
+        invokeAsync(AsyncSections.END, phase, cookie);
+    }
+
+    private static void invokeAsync(@Nullable Method method, @NonNull MigrationPhase phase,
+                                    int cookie) {
+        if (method == null) {
+            return;
+        }
+        final String name = SECTION_NAMES[phase.ordinal()];
+        try {
+            if (AsyncSections.TRACE_TAG == null) {
+                method.invoke(null, name, cookie);
+            } else {
+                method.invoke(null, AsyncSections.TRACE_TAG, name, cookie);
+            }
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            Log.d(TAG, "Unable to trace " + name, e);
+        }
+    }
+
+    @NonNull
+    private static String[] sectionNames() {
+        final MigrationPhase[] phases = MigrationPhase.values();
+        final String[] names = new String[phases.length];
+        for (MigrationPhase phase : phases) {
+            names[phase.ordinal()] = SECTION_PREFIX + phase.name();
+        }
+        return names;
+    }
+
+    /**
+     * Async section methods, looked up the first time an async section is traced.
+     */
+    private static final class AsyncSections {
+        @Nullable
+        static final Method BEGIN;
+        @Nullable
+        static final Method END;
+        // Only set for the hidden methods, which take the trace tag as first argument.
+        @Nullable
+        static final Long TRACE_TAG;
+
+        static {
+            Method begin = null;
+            Method end = null;
+            Long traceTag = null;
+            try {
+                if (Build.VERSION.SDK_INT >= 29) { // Build.VERSION_CODES.Q
+                    begin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                    end = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                } else {
+                    traceTag = Trace.class.getField("TRACE_TAG_APP").getLong(null);
+                    begin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class,
+                            int.class);
+                    end = Trace.class.getMethod("asyncTraceEnd", long.class, String.class,
+                            int.class);
+                }
+            } catch (NoSuchMethodException | NoSuchFieldException | IllegalAccessException e) {
+                Log.d(TAG, "Async trace sections are not available", e);
+                begin = null;
+                end = null;
+            }
+            BEGIN = begin;
+            END = end;
+            TRACE_TAG = traceTag;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Base64;
+import android.util.Log;
+
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the sessions the server rejected recently, persisted so that a session kept on the
+ * device, or restored from a backup, is not sent again on every cold start. Sessions are keyed
+ * by a hash of their auth token and consumer key, the token itself is not stored.
+ * <p>
+ * Shared by the {@link AuthMigrator}s of all {@link com.google.firebase.FirebaseApp}s, as they
+ * persist their entries together.
+ */
+final class RejectedSessionCache {
+    static final long TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    static final int MAX_ENTRIES = 16;
+    private static final String TAG = "DigitsRejectedSessions";
+    private static final String REJECTED_AT_KEY = "at";
+    private static final String STATUS_CODE_KEY = "status";
+    @NonNull
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @NonNull
+    private static final Object sLock = new Object();
+    @Nullable
+    private static RejectedSessionCache sInstance;
+
+    @NonNull
+    private final StorageHelpers mStorageHelpers;
+    @NonNull
+    private final Object mLock = new Object();
+    // Guarded by mLock, null until read from disk.
+    @Nullable
+    private JSONObject mEntries;
+
+    @NonNull
+    static RejectedSessionCache getInstance(@NonNull StorageHelpers storageHelpers) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new RejectedSessionCache(storageHelpers);
+            }
+            return sInstance;
+        }
+    }
+
+    RejectedSessionCache(@NonNull StorageHelpers storageHelpers) {
+        mStorageHelpers = storageHelpers;
+    }
+
+    /**
+     * @return the failure the server returned for the session within {@link #TTL_MILLIS}, or null
+     */
+    @WorkerThread
+    @Nullable
+    FirebaseWebRequestException getRejection(@NonNull RedeemableDigitsSession session) {
+        final long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            final JSONObject entries = getEntriesLocked();
+            // Spares hashing the session on devices that never had one rejected.
+            if (entries.length() == 0) {
+                return null;
+            }
+            final JSONObject entry = entries.optJSONObject(key(session));
+            if (entry == null || isExpired(entry, now)) {
+                return null;
+            }
+            return new FirebaseWebRequestException("Digits session was rejected recently",
+                    entry.optInt(STATUS_CODE_KEY));
+        }
+    }
+
+    @WorkerThread
+    void recordRejection(@NonNull RedeemableDigitsSession session, int httpStatusCode) {
+        final long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            final JSONObject entries = getEntriesLocked();
+            try {
+                entries.put(key(session), new JSONObject()
+                        .put(REJECTED_AT_KEY, now)
+                        .put(STATUS_CODE_KEY, httpStatusCode));
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to record rejected session", e);
+                return;
+            }
+            prune(entries, now);
+            mStorageHelpers.putRejectedSessionsJson(entries.toString());
+        }
+    }
+
+    @NonNull
+    private JSONObject getEntriesLocked() {
+        if (mEntries == null) {
+            final String json = mStorageHelpers.getRejectedSessionsJson();
+            try {
+                mEntries = json == null ? new JSONObject() : new JSONObject(json);
+            } catch (JSONException e) {
+                Log.w(TAG, "Dropping unreadable rejected sessions", e);
+                mEntries = new JSONObject();
+            }
+        }
+        return mEntries;
+    }
+
+    /**
+     * Drops expired entries, then the oldest ones beyond {@link #MAX_ENTRIES}.
+     */
+    private static void prune(@NonNull JSONObject entries, long now) {
+        String oldestKey = null;
+        long oldestRejectedAt = Long.MAX_VALUE;
+        final Iterator<String> keys = entries.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            final JSONObject entry = entries.optJSONObject(key);
+            if (entry == null || isExpired(entry, now)) {
+                keys.remove();
+            } else if (entry.optLong(REJECTED_AT_KEY) < oldestRejectedAt) {
+                oldestKey = key;
+                oldestRejectedAt = entry.optLong(REJECTED_AT_KEY);
+            }
+        }
+        if (entries.length() > MAX_ENTRIES) {
+            entries.remove(oldestKey);
+            prune(entries, now);
+        }
+    }
+
+    private static boolean isExpired(@NonNull JSONObject entry, long now) {
+        final long age = now - entry.optLong(REJECTED_AT_KEY);
+        // A negative age means the clock was set back, don't trust the entry.
+        return age < 0 || age >= TTL_MILLIS;
+    }
+
+    @NonNull
+    static String key(@NonNull RedeemableDigitsSession session) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        update(digest, session.getAuthToken());
+        digest.update((byte) 0);
+        update(digest, session.getConsumerKey());
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP | Base64.NO_PADDING);
+    }
+
+    /**
+     * Hashes a missing value like an empty one: the builder lets corrupt sessions through.
+     */
+    private static void update(@NonNull MessageDigest digest, @Nullable String value) {
+        if (value != null) {
+            digest.update(value.getBytes(UTF_8));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when {@link AuthMigrator} retries a Digits session exchange that failed for
+ * transient reasons: server errors (5xx) and rate limiting (429). Other failures are never
+ * retried.
+ * <p>
+ * Delays grow exponentially and are drawn at random between zero and the current backoff ("full
+ * jitter"), so that apps hitting the same outage do not retry in lockstep. A delay requested by
+ * the server takes precedence when it is longer. No attempt is scheduled past the deadline.
+ */
+public final class RetryPolicy {
+    static final long NO_RETRY = -1;
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final long mDeadlineMillis;
+    @NonNull
+    private final Random mRandom;
+
+    private RetryPolicy(@NonNull Builder builder) {
+        mMaxAttempts = builder.mMaxAttempts;
+        mInitialBackoffMillis = builder.mInitialBackoffMillis;
+        mMaxBackoffMillis = builder.mMaxBackoffMillis;
+        mDeadlineMillis = builder.mDeadlineMillis;
+        mRandom = builder.mRandom;
+    }
+
+    /**
+     * @param attempt       number of exchanges attempted so far, starting at 1
+     * @param exception     failure of the latest attempt
+     * @param elapsedMillis time since the first attempt started
+     * @return how long to wait before the next attempt, or {@link #NO_RETRY}
+     */
+    long getRetryDelayMillis(int attempt, @Nullable Exception exception, long elapsedMillis) {
+        if (attempt >= mMaxAttempts || !(exception instanceof FirebaseWebRequestException)) {
+            return NO_RETRY;
+        }
+        final FirebaseWebRequestException webRequestException =
+                (FirebaseWebRequestException) exception;
+        if (!webRequestException.isTransient()) {
+            return NO_RETRY;
+        }
+        long backoff = Math.min(mInitialBackoffMillis, mMaxBackoffMillis);
+        for (int i = 1; i < attempt && backoff < mMaxBackoffMillis; i++) {
+            backoff = backoff > mMaxBackoffMillis / 2 ? mMaxBackoffMillis : backoff * 2;
+        }
+        long delay = (long) (mRandom.nextDouble() * backoff);
+        delay = Math.max(delay, webRequestException.getRetryAfterMillis());
+        return elapsedMillis + delay > mDeadlineMillis ? NO_RETRY : delay;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return mInitialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return mMaxBackoffMillis;
+    }
+
+    public long getDeadlineMillis() {
+        return mDeadlineMillis;
+    }
+
+    /**
+     * Builds a {@link RetryPolicy}. By default an exchange is attempted up to 3 times, backing off
+     * from 1 second up to 30 seconds, within 2 minutes of the first attempt.
+     */
+    public static final class Builder {
+        private int mMaxAttempts = 3;
+        private long mInitialBackoffMillis = TimeUnit.SECONDS.toMillis(1);
+        private long mMaxBackoffMillis = TimeUnit.SECONDS.toMillis(30);
+        private long mDeadlineMillis = TimeUnit.MINUTES.toMillis(2);
+        @NonNull
+        private Random mRandom = new Random();
+
+        /**
+         * Set the maximum number of exchanges, including the first one
+         *
+         * @param maxAttempts at least 1
+         * @return builder
+         */
+        @NonNull
+        public Builder setMaxAttempts(int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be at least 1");
+            }
+            mMaxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Set the upper bound of the delay before the first retry. It doubles on each retry.
+         *
+         * @param backoff  non negative delay
+         * @param timeUnit unit of the delay
+         * @return builder
+         */
+        @NonNull
+        public Builder setInitialBackoff(long backoff, @NonNull TimeUnit timeUnit) {
+            mInitialBackoffMillis = toNonNegativeMillis(backoff, timeUnit);
+            return this;
+        }
+
+        /**
+         * Set the cap of the exponential backoff
+         *
+         * @param backoff  non negative delay
+         * @param timeUnit unit of the delay
+         * @return builder
+         */
+        @NonNull
+        public Builder setMaxBackoff(long backoff, @NonNull TimeUnit timeUnit) {
+            mMaxBackoffMillis = toNonNegativeMillis(backoff, timeUnit);
+            return this;
+        }
+
+        /**
+         * Set the time after the first attempt past which no retry is scheduled
+         *
+         * @param deadline non negative duration
+         * @param timeUnit unit of the duration
+         * @return builder
+         */
+        @NonNull
+        public Builder setDeadline(long deadline, @NonNull TimeUnit timeUnit) {
+            mDeadlineMillis = toNonNegativeMillis(deadline, timeUnit);
+            return this;
+        }
+
+        @VisibleForTesting
+        @NonNull
+        Builder setRandom(@NonNull Random random) {
+            mRandom = random;
+            return this;
+        }
+
+        @NonNull
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+
+        private static long toNonNegativeMillis(long duration, @NonNull TimeUnit timeUnit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("Duration must not be negative");
+            }
+            return timeUnit.toMillis(duration);
+        }
+    }
+}
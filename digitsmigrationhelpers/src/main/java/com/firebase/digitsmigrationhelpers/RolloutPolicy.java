@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the exchanges of a release that adds the migration over time, instead of having every
+ * device send its exchange within minutes of updating.
+ * <p>
+ * Each device falls in a bucket derived from a hash of its Digits user id, so it stays in or out
+ * of the rollout across launches, and raising the percentage only adds devices. Devices outside
+ * the rollout keep their legacy session untouched until a later release raises the percentage.
+ * Devices inside it wait a random delay before exchanging.
+ */
+public final class RolloutPolicy {
+    // Fine enough for rollouts in steps of a hundredth of a percent.
+    private static final int BUCKETS = 10000;
+
+    private final double mRolloutPercentage;
+    private final long mMaxStartDelayMillis;
+    @NonNull
+    private final Random mRandom;
+
+    private RolloutPolicy(@NonNull Builder builder) {
+        mRolloutPercentage = builder.mRolloutPercentage;
+        mMaxStartDelayMillis = builder.mMaxStartDelayMillis;
+        mRandom = builder.mRandom;
+    }
+
+    /**
+     * @param key stable value identifying the device's Digits user
+     * @return whether the device is part of the rollout
+     */
+    boolean includes(long key) {
+        return getBucket(key) < mRolloutPercentage * (BUCKETS / 100);
+    }
+
+    /**
+     * @return how long to wait before exchanging, drawn at random up to the maximum start delay
+     */
+    long nextStartDelayMillis() {
+        if (mMaxStartDelayMillis == 0) {
+            return 0;
+        }
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * mMaxStartDelayMillis);
+        }
+    }
+
+    @VisibleForTesting
+    static int getBucket(long key) {
+        // SplitMix64 finalizer, so that consecutive ids land in unrelated buckets.
+        long hash = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        hash ^= hash >>> 31;
+        return (int) ((hash >>> 1) % BUCKETS);
+    }
+
+    public double getRolloutPercentage() {
+        return mRolloutPercentage;
+    }
+
+    public long getMaxStartDelayMillis() {
+        return mMaxStartDelayMillis;
+    }
+
+    /**
+     * Builds a {@link RolloutPolicy}. By default every device is part of the rollout and exchanges
+     * right away.
+     */
+    public static final class Builder {
+        private double mRolloutPercentage = 100;
+        private long mMaxStartDelayMillis;
+        @NonNull
+        private Random mRandom = new Random();
+
+        /**
+         * Set the share of devices that exchange their legacy session
+         *
+         * @param rolloutPercentage between 0 and 100
+         * @return builder
+         */
+        @NonNull
+        public Builder setRolloutPercentage(double rolloutPercentage) {
+            if (!(rolloutPercentage >= 0 && rolloutPercentage <= 100)) {
+                throw new IllegalArgumentException("rolloutPercentage must be between 0 and 100");
+            }
+            mRolloutPercentage = rolloutPercentage;
+            return this;
+        }
+
+        /**
+         * Set the upper bound of the random delay before a device in the rollout exchanges
+         *
+         * @param delay    non negative delay
+         * @param timeUnit unit of the delay
+         * @return builder
+         */
+        @NonNull
+        public Builder setMaxStartDelay(long delay, @NonNull TimeUnit timeUnit) {
+            if (delay < 0) {
+                throw new IllegalArgumentException("Delay must not be negative");
+            }
+            mMaxStartDelayMillis = timeUnit.toMillis(delay);
+            return this;
+        }
+
+        @VisibleForTesting
+        @NonNull
+        Builder setRandom(@NonNull Random random) {
+            mRandom = random;
+            return this;
+        }
+
+        @NonNull
+        public RolloutPolicy build() {
+            return new RolloutPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tasks completing at the points of the main thread's startup that {@link MigrationSchedule}
+ * defers migrations to.
+ */
+final class StartupScheduler {
+    // Apps animating from the start may never leave the main thread idle.
+    private static final long IDLE_TIMEOUT_SECONDS = 5;
+
+    private StartupScheduler() {
+    }
+
+    /**
+     * @return task completing once the main thread has drawn its next frame
+     */
+    @NonNull
+    static Task<Void> afterNextFrame() {
+        final Trigger trigger = new Trigger();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                    trigger.run();
+                    return;
+                }
+                Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        // Frame callbacks run before the frame is drawn, this message after.
+                        handler.post(trigger);
+                    }
+                });
+            }
+        });
+        return trigger.getTask();
+    }
+
+    /**
+     * @return task completing once the main thread is idle, or after {@link #IDLE_TIMEOUT_SECONDS}
+     */
+    @NonNull
+    static Task<Void> whenIdle(@NonNull ScheduledExecutorService scheduler) {
+        final Trigger trigger = new Trigger();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        trigger.run();
+                        return false;
+                    }
+                });
+            }
+        });
+        scheduler.schedule(trigger, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return trigger.getTask();
+    }
+
+    /**
+     * Completes its task the first time it runs.
+     */
+    private static final class Trigger implements Runnable {
+        @NonNull
+        private final AtomicBoolean mTriggered = new AtomicBoolean();
+        @NonNull
+        private final TaskCompletionSource<Void> mSource = new TaskCompletionSource<>();
+
+        @NonNull
+        Task<Void> getTask() {
+            return mSource.getTask();
+        }
+
+        @Override
+        public void run() {
+            if (mTriggered.compareAndSet(false, true)) {
+                mSource.setResult(null);
+            }
+        }
+    }
+}
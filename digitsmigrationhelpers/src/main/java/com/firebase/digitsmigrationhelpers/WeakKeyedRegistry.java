@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map from weakly held keys, compared by identity, to values created on first use.
+ * <p>
+ * Lookups of existing values take no lock. Entries are dropped once their key has been garbage
+ * collected, which requires values not to hold their key strongly.
+ */
+final class WeakKeyedRegistry<K, V> {
+    interface Factory<K, V> {
+        @NonNull
+        V create(@NonNull K key);
+    }
+
+    @NonNull
+    private final ConcurrentHashMap<WeakKey<K>, V> mEntries = new ConcurrentHashMap<>();
+    @NonNull
+    private final ReferenceQueue<K> mCollectedKeys = new ReferenceQueue<>();
+    @NonNull
+    private final Factory<K, V> mFactory;
+
+    WeakKeyedRegistry(@NonNull Factory<K, V> factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * Returns the value for the key, creating it if needed. Concurrent first calls for the same
+     * key may each create a value, but all of them return the one that was registered.
+     */
+    @NonNull
+    V get(@NonNull K key) {
+        V value = mEntries.get(new WeakKey<>(key, null));
+        if (value != null) {
+            return value;
+        }
+        expungeCollectedKeys();
+        V created = mFactory.create(key);
+        V registered = mEntries.putIfAbsent(new WeakKey<>(key, mCollectedKeys), created);
+        return registered == null ? created : registered;
+    }
+
+    /**
+     * Returns the number of live entries.
+     */
+    int size() {
+        expungeCollectedKeys();
+        return mEntries.size();
+    }
+
+    private void expungeCollectedKeys() {
+        Reference<? extends K> collected;
+        while ((collected = mCollectedKeys.poll()) != null) {
+            mEntries.remove(collected);
+        }
+    }
+
+    private static final class WeakKey<K> extends WeakReference<K> {
+        private final int mHash;
+
+        WeakKey(@NonNull K key, @Nullable ReferenceQueue<K> queue) {
+            super(key, queue);
+            mHash = System.identityHashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof WeakKey)) {
+                return false;
+            }
+            Object key = get();
+            return key != null && key == ((WeakKey<?>) o).get();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers.internal;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RestrictTo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default executor for the migration pipeline. It has up to one thread per core, at most
+ * {@link #MAX_THREADS}, so that the independent steps of a migration can run in parallel. Its
+ * threads run at background priority and are released when idle, so apps that have nothing to
+ * migrate keep no thread around. The same threads run delayed work such as retries.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public final class BackgroundExecutor {
+    private static final String THREAD_NAME = "DigitsMigration";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // The signed in user check, the legacy session read and the manifest lookup.
+    private static final int MAX_THREADS = 3;
+
+    @NonNull
+    private static final Object sLock = new Object();
+    @Nullable
+    private static ScheduledThreadPoolExecutor sInstance;
+
+    private BackgroundExecutor() {
+    }
+
+    @NonNull
+    public static Executor get() {
+        return getScheduler();
+    }
+
+    @NonNull
+    public static ScheduledExecutorService getScheduler() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                final int threads = Math.max(1,
+                        Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(@NonNull final Runnable runnable) {
+                                return new Thread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        Process.setThreadPriority(
+                                                Process.THREAD_PRIORITY_BACKGROUND);
+                                        runnable.run();
+                                    }
+                                }, THREAD_NAME);
+                            }
+                        });
+                executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                executor.allowCoreThreadTimeOut(true);
+                sInstance = executor;
+            }
+            return sInstance;
+        }
+    }
+}
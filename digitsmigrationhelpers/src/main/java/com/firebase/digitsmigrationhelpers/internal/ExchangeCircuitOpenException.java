@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers.internal;
+
+import android.support.annotation.RestrictTo;
+
+import com.google.firebase.FirebaseException;
+
+/**
+ * Failure of an exchange that was not sent because the exchange backend kept failing recently.
+ * The legacy session is kept, a later migration tries again once the backend had time to recover.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public class ExchangeCircuitOpenException extends FirebaseException {
+    public ExchangeCircuitOpenException() {
+        super("Digits session exchanges are paused after repeated server failures");
+    }
+}
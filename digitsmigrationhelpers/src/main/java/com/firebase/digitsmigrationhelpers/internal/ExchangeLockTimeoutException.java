@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers.internal;
+
+import android.support.annotation.RestrictTo;
+
+import com.google.firebase.FirebaseException;
+
+/**
+ * Failure of an exchange that was not sent because another process of the app held on to the
+ * exchange for too long. The legacy session is kept, a later migration tries again or finds what
+ * that process got.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public class ExchangeLockTimeoutException extends FirebaseException {
+    public ExchangeLockTimeoutException() {
+        super("Timed out waiting for another process to exchange the Digits session");
+    }
+}
@@ -20,13 +20,48 @@ import com.google.firebase.FirebaseException;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
 public class FirebaseWebRequestException extends FirebaseException {
+    /**
+     * Value of {@link #getRetryAfterMillis()} when the server did not say when to retry.
+     */
+    public static final long NO_RETRY_AFTER = -1;
+
     private final int httpStatusCode;
+    private final long retryAfterMillis;
 
     public FirebaseWebRequestException(String message, int httpStatusCode) {
+        this(message, httpStatusCode, NO_RETRY_AFTER);
+    }
+
+    /**
+     * @param retryAfterMillis how long the server asked clients to wait before retrying, from
+     *                         its Retry-After header, or {@link #NO_RETRY_AFTER}
+     */
+    public FirebaseWebRequestException(String message, int httpStatusCode,
+                                       long retryAfterMillis) {
         this.httpStatusCode = httpStatusCode;
+        this.retryAfterMillis = retryAfterMillis;
     }
 
     public int getHttpStatusCode() {
         return httpStatusCode;
     }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * @return whether the server deemed the redeemed session invalid, as opposed to failing for
+     * internal reasons
+     */
+    public boolean isSessionRejected() {
+        return httpStatusCode == 400 || httpStatusCode == 403;
+    }
+
+    /**
+     * @return whether the request may succeed if retried later: server errors and rate limiting
+     */
+    public boolean isTransient() {
+        return httpStatusCode >= 500 && httpStatusCode < 600 || httpStatusCode == 429;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers.internal;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RestrictTo;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+/**
+ * Snapshot of the Digits and Fabric keys declared in the app's AndroidManifest.xml.
+ *
+ * The manifest cannot change while the process is alive, so the keys are read with a single
+ * successful {@link PackageManager} lookup the first time they are needed and shared
+ * process-wide.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public final class ManifestMetadata {
+    @NonNull
+    private static final String TAG = "DigitsMigrationhelpers";
+    @NonNull
+    private static final Object sLock = new Object();
+    @Nullable
+    private static volatile ManifestMetadata sInstance;
+
+    @Nullable
+    private final String consumerKey;
+    @Nullable
+    private final String consumerSecret;
+    @Nullable
+    private final String fabricApiKey;
+
+    @VisibleForTesting
+    public ManifestMetadata(@Nullable String consumerKey, @Nullable String consumerSecret,
+                     @Nullable String fabricApiKey) {
+        this.consumerKey = consumerKey;
+        this.consumerSecret = consumerSecret;
+        this.fabricApiKey = fabricApiKey;
+    }
+
+    /**
+     * Returns the process-wide snapshot, reading the manifest on first use. A failed lookup is
+     * not kept: its keys are all null, and the next call tries again.
+     */
+    @NonNull
+    public static ManifestMetadata get(@NonNull Context context) {
+        ManifestMetadata instance = sInstance;
+        if (instance == null) {
+            synchronized (sLock) {
+                instance = sInstance;
+                if (instance == null) {
+                    final ApplicationInfo ai = readApplicationInfo(context);
+                    if (ai == null) {
+                        return new ManifestMetadata(null, null, null);
+                    }
+                    instance = fromMetaData(ai.metaData);
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    @NonNull
+    private static ManifestMetadata fromMetaData(@Nullable Bundle bundle) {
+        if (bundle == null) {
+            return new ManifestMetadata(null, null, null);
+        }
+        return new ManifestMetadata(
+                bundle.getString(StorageHelpers.DIGITS_CONSUMER_KEY_KEY),
+                bundle.getString(StorageHelpers.DIGITS_CONSUMER_SECRET_KEY),
+                bundle.getString(StorageHelpers.FABRIC_API_KEY_KEY));
+    }
+
+    /**
+     * @return the app's info, or null if the lookup failed, e.g. when the package manager
+     * could not be reached early during startup
+     */
+    @Nullable
+    private static ApplicationInfo readApplicationInfo(@NonNull Context context) {
+        try {
+            return context.getPackageManager()
+                    .getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read manifest meta-data", e);
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    public static void reset() {
+        synchronized (sLock) {
+            sInstance = null;
+        }
+    }
+
+    @Nullable
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+
+    @Nullable
+    public String getConsumerSecret() {
+        return consumerSecret;
+    }
+
+    @Nullable
+    public String getFabricApiKey() {
+        return fabricApiKey;
+    }
+}
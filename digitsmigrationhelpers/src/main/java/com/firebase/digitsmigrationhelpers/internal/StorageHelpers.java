@@ -18,22 +18,37 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RestrictTo;
+import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
-import org.json.JSONObject;
+import com.firebase.digitsmigrationhelpers.RedeemableDigitsSessionBuilder;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
 public class StorageHelpers {
+    @NonNull
+    private final Context mContext;
     @Nullable
-    private final SharedPreferences mDigitsSharedPreferences;
+    private volatile SharedPreferences mDigitsSharedPreferences;
     @NonNull
     public static final String DIGITS_SESSION_PREF_FILE_NAME =
             "com.digits.sdk.android:digits:session_store";
@@ -46,21 +61,377 @@ public class StorageHelpers {
     @NonNull
     public static final String DIGITS_CONSUMER_SECRET_KEY = "com.digits.sdk.android.ConsumerSecret";
     @NonNull
-    private static final String BASE_64_NONE_ALGORITHM_JWT_HEADER = "eyJhbGciOiJub25lIn0=";
+    private static final String SHARED_PREFS_DIR_NAME = "shared_prefs";
+    @NonNull
+    private static final String SHARED_PREFS_FILE_EXTENSION = ".xml";
+    @NonNull
+    public static final String MIGRATION_SETTLED_FILE_NAME =
+            "com.firebase.digitsmigrationhelpers.settled";
+    @NonNull
+    public static final String EXCHANGE_LOCK_FILE_NAME =
+            "com.firebase.digitsmigrationhelpers.exchange.lock";
+    @NonNull
+    public static final String EXCHANGE_OUTCOME_FILE_NAME =
+            "com.firebase.digitsmigrationhelpers.exchange";
+    @NonNull
+    public static final String MIGRATION_PREF_FILE_NAME = "com.firebase.digitsmigrationhelpers";
+    @NonNull
+    private static final String EXCHANGE_LATENCY_KEY = "exchange_latency_average_millis";
+    @NonNull
+    private static final String REJECTED_SESSIONS_KEY = "rejected_sessions";
+    @NonNull
+    private static final String EXCHANGE_FAILURE_COUNT_KEY = "exchange_failure_count";
+    @NonNull
+    private static final String EXCHANGE_PAUSED_UNTIL_KEY = "exchange_paused_until_millis";
     @NonNull
     private static final String TAG = "DigitsMigrationhelpers";
+    @NonNull
+    private final UnsignedJwtWriter mJwtWriter = new UnsignedJwtWriter();
+
+    // The active session as last read from the session store, null until read or once changed.
+    @Nullable
+    private volatile CachedSession mCachedSession;
+    // Bumped on every change, so that a read racing with a change does not cache stale data.
+    private volatile int mSessionGeneration;
+    @NonNull
+    private final Object mSessionCacheLock = new Object();
+    // SharedPreferences only keeps weak references to its listeners.
+    @NonNull
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSessionChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences,
+                                                      String key) {
+                    // A null key is reported for clear() from API 30.
+                    if (key == null || DIGITS_PREF_KEY_ACTIVE_SESSION.equals(key)) {
+                        invalidateCachedSession();
+                    }
+                }
+            };
+
+    @NonNull
+    private final Object mClearLock = new Object();
+    // Clear that was scheduled and has not started yet, later requests join it.
+    @Nullable
+    private TaskCompletionSource<Void> mQueuedClear;
 
     public StorageHelpers(@NonNull Context context) {
-        mDigitsSharedPreferences = context.getApplicationContext()
-                .getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE);
+        mContext = context.getApplicationContext();
+    }
 
+    /**
+     * Opens the Digits session store on first use. Loading it reads and parses the whole xml
+     * file, which apps with nothing to migrate should not pay for.
+     */
+    @Nullable
+    private SharedPreferences getDigitsSharedPreferences() {
+        SharedPreferences preferences = mDigitsSharedPreferences;
+        if (preferences == null) {
+            synchronized (mSessionCacheLock) {
+                preferences = mDigitsSharedPreferences;
+                if (preferences == null) {
+                    preferences = mContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME,
+                            Context.MODE_PRIVATE);
+                    if (preferences != null) {
+                        preferences.registerOnSharedPreferenceChangeListener(
+                                mSessionChangeListener);
+                    }
+                    mDigitsSharedPreferences = preferences;
+                }
+            }
+        }
+        return preferences;
     }
 
+    /**
+     * Returns the active Digits session. The value is cached until the session store changes or
+     * {@link #clearDigitsSession()} is called.
+     */
     @Nullable
     public String getDigitsSessionJson() {
-        return mDigitsSharedPreferences == null
+        final CachedSession cached = mCachedSession;
+        if (cached != null) {
+            return cached.mJson;
+        }
+        final int generation = mSessionGeneration;
+        final SharedPreferences preferences = getDigitsSharedPreferences();
+        final String json = preferences == null
                 ? null
-                : mDigitsSharedPreferences.getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null);
+                : preferences.getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null);
+        synchronized (mSessionCacheLock) {
+            if (generation == mSessionGeneration) {
+                mCachedSession = new CachedSession(json, null);
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Returns the builder that {@link #putParsedDigitsSession} stored for the session json, if
+     * it is still the active session. Callers must not modify the returned builder.
+     */
+    @Nullable
+    public RedeemableDigitsSessionBuilder getParsedDigitsSession(@NonNull String json) {
+        final CachedSession cached = mCachedSession;
+        return cached != null && json.equals(cached.mJson) ? cached.mParsed : null;
+    }
+
+    /**
+     * Keeps the builder parsed from the active session json, so that later migrations can skip
+     * parsing it again. Ignored if the active session changed in the meantime.
+     */
+    public void putParsedDigitsSession(@NonNull String json,
+                                       @NonNull RedeemableDigitsSessionBuilder parsed) {
+        synchronized (mSessionCacheLock) {
+            final CachedSession cached = mCachedSession;
+            if (cached != null && json.equals(cached.mJson)) {
+                mCachedSession = new CachedSession(json, parsed);
+            }
+        }
+    }
+
+    private void invalidateCachedSession() {
+        synchronized (mSessionCacheLock) {
+            mSessionGeneration++;
+            mCachedSession = null;
+        }
+    }
+
+    /**
+     * Checks, without loading the Digits session store, whether there is nothing left to
+     * migrate on this device: either the Digits SDK never wrote its session store, or the
+     * migration was settled by {@link #markMigrationSettled()} and the store has not been
+     * written to since.
+     *
+     * @return true if the session store does not need to be read
+     */
+    public boolean isMigrationSettled() {
+        final File sessionStore = getDigitsSessionStoreFile();
+        if (sessionStore == null) {
+            return false;
+        }
+        if (!sessionStore.exists()) {
+            return true;
+        }
+        final File marker = getMigrationSettledFile();
+        // Strictly newer, file systems may only keep modification times to the second.
+        return marker != null && marker.lastModified() > sessionStore.lastModified();
+    }
+
+    /**
+     * Records that the device has no Digits session left to migrate so that later cold starts
+     * can skip reading the session store.
+     */
+    public void markMigrationSettled() {
+        final File marker = getMigrationSettledFile();
+        if (marker == null) {
+            return;
+        }
+        try {
+            if (!marker.createNewFile()) {
+                marker.setLastModified(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist migration state", e);
+        }
+    }
+
+    @Nullable
+    private File getDigitsSessionStoreFile() {
+        final ApplicationInfo applicationInfo = mContext.getApplicationInfo();
+        if (applicationInfo == null || applicationInfo.dataDir == null) {
+            return null;
+        }
+        return new File(new File(applicationInfo.dataDir, SHARED_PREFS_DIR_NAME),
+                DIGITS_SESSION_PREF_FILE_NAME + SHARED_PREFS_FILE_EXTENSION);
+    }
+
+    @Nullable
+    private File getMigrationSettledFile() {
+        // Kept out of backups: a restored Digits session store must be migrated again.
+        return getNoBackupFile(MIGRATION_SETTLED_FILE_NAME);
+    }
+
+    /**
+     * Tries to take the lock that lets a single process of the app exchange the legacy session
+     * at a time. The lock is held by the calling process as a whole: its threads must take turns
+     * before calling this.
+     *
+     * @return the lock, to close once the exchange outcome is recorded, or null if another
+     * process holds it
+     */
+    @WorkerThread
+    @Nullable
+    public Closeable tryLockExchange() throws IOException {
+        final File lockFile = getNoBackupFile(EXCHANGE_LOCK_FILE_NAME);
+        if (lockFile == null) {
+            throw new FileNotFoundException("No files directory to lock exchanges in");
+        }
+        final RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+        try {
+            final FileLock lock = file.getChannel().tryLock();
+            if (lock == null) {
+                file.close();
+                return null;
+            }
+            // Closing the file releases the lock.
+            return file;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the exchange outcome stored by {@link #putExchangeOutcome(String)}, or null if none
+     * was stored or it could not be read. Only call while holding {@link #tryLockExchange()}.
+     */
+    @WorkerThread
+    @Nullable
+    public String getExchangeOutcome() {
+        final File outcomeFile = getNoBackupFile(EXCHANGE_OUTCOME_FILE_NAME);
+        if (outcomeFile == null || !outcomeFile.exists()) {
+            return null;
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(outcomeFile);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[512];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read exchange outcome", e);
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Stores the outcome of an exchange for the other processes of the app. Only call while
+     * holding {@link #tryLockExchange()}.
+     */
+    @WorkerThread
+    public void putExchangeOutcome(@NonNull String outcome) {
+        final File outcomeFile = getNoBackupFile(EXCHANGE_OUTCOME_FILE_NAME);
+        if (outcomeFile == null) {
+            return;
+        }
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(outcomeFile);
+            output.write(outcome.getBytes(Charset.forName("UTF-8")));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist exchange outcome", e);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    @Nullable
+    private File getNoBackupFile(@NonNull String name) {
+        final File directory = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? mContext.getNoBackupFilesDir()
+                : mContext.getFilesDir();
+        return directory == null ? null : new File(directory, name);
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close file", e);
+        }
+    }
+
+    /**
+     * Returns the moving average of exchange latencies stored by
+     * {@link #putExchangeLatencyAverageMillis(long)}, or 0 if none was stored yet.
+     */
+    public long getExchangeLatencyAverageMillis() {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        return preferences == null ? 0 : preferences.getLong(EXCHANGE_LATENCY_KEY, 0);
+    }
+
+    /**
+     * Writes the average before returning. Unlike apply(), this leaves no pending write for the
+     * main thread to wait on when an activity pauses.
+     */
+    @WorkerThread
+    public void putExchangeLatencyAverageMillis(long averageMillis) {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        if (preferences != null
+                && !preferences.edit().putLong(EXCHANGE_LATENCY_KEY, averageMillis).commit()) {
+            Log.w(TAG, "Unable to persist exchange latency");
+        }
+    }
+
+    /**
+     * Returns the sessions recently rejected by the server as stored by
+     * {@link #putRejectedSessionsJson(String)}, or null if none was stored yet.
+     */
+    @Nullable
+    public String getRejectedSessionsJson() {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        return preferences == null ? null : preferences.getString(REJECTED_SESSIONS_KEY, null);
+    }
+
+    @WorkerThread
+    public void putRejectedSessionsJson(@NonNull String json) {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        if (preferences != null
+                && !preferences.edit().putString(REJECTED_SESSIONS_KEY, json).commit()) {
+            Log.w(TAG, "Unable to persist rejected sessions");
+        }
+    }
+
+    /**
+     * Returns how many exchanges in a row failed on the server side, as stored by
+     * {@link #putExchangeFailureState(int, long)}.
+     */
+    public int getExchangeFailureCount() {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        return preferences == null ? 0 : preferences.getInt(EXCHANGE_FAILURE_COUNT_KEY, 0);
+    }
+
+    /**
+     * Returns the wall clock time until which exchanges are paused, as stored by
+     * {@link #putExchangeFailureState(int, long)}, or 0.
+     */
+    public long getExchangePausedUntilMillis() {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        return preferences == null ? 0 : preferences.getLong(EXCHANGE_PAUSED_UNTIL_KEY, 0);
+    }
+
+    /**
+     * Writes the exchange failure state to disk before returning, so that it survives an app
+     * crashing right after a failed exchange.
+     */
+    @WorkerThread
+    public void putExchangeFailureState(int failureCount, long pausedUntilMillis) {
+        final SharedPreferences preferences = getMigrationSharedPreferences();
+        if (preferences != null && !preferences.edit()
+                .putInt(EXCHANGE_FAILURE_COUNT_KEY, failureCount)
+                .putLong(EXCHANGE_PAUSED_UNTIL_KEY, pausedUntilMillis)
+                .commit()) {
+            Log.w(TAG, "Unable to persist exchange failure state");
+        }
+    }
+
+    /**
+     * Opens the store for the state of this library, separate from the Digits session store so
+     * that clearing the latter keeps it.
+     */
+    @Nullable
+    private SharedPreferences getMigrationSharedPreferences() {
+        return mContext.getSharedPreferences(MIGRATION_PREF_FILE_NAME, Context.MODE_PRIVATE);
     }
 
     @Nullable
@@ -81,27 +452,99 @@ public class StorageHelpers {
         return apiKey;
     }
 
+    /**
+     * Returns the Digits and Fabric keys from the manifest. The lookup is done once per process
+     * and shared by every instance.
+     */
+    @NonNull
+    public ManifestMetadata getManifestMetadata(@NonNull Context context) {
+        return ManifestMetadata.get(context);
+    }
+
+
+    /**
+     * Clears the Digits session store on the executor and writes it to disk before completing,
+     * without queuing work for the platform to flush when an activity pauses. Requests made
+     * before a scheduled clear started are merged into it.
+     *
+     * @return task completing once the cleared store is on disk
+     */
+    @NonNull
+    public Task<Void> clearDigitsSessionAsync(@NonNull Executor executor) {
+        synchronized (mClearLock) {
+            if (mQueuedClear != null) {
+                return mQueuedClear.getTask();
+            }
+            final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+            mQueuedClear = source;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mClearLock) {
+                        mQueuedClear = null;
+                    }
+                    try {
+                        final SharedPreferences preferences = getDigitsSharedPreferences();
+                        final boolean committed = preferences == null
+                                || preferences.edit().clear().commit();
+                        invalidateCachedSession();
+                        if (committed) {
+                            markMigrationSettled();
+                            source.setResult(null);
+                        } else {
+                            source.setException(
+                                    new IOException("Unable to write the Digits session store"));
+                        }
+                    } catch (RuntimeException e) {
+                        source.setException(e);
+                    }
+                }
+            });
+            return source.getTask();
+        }
+    }
 
+    /**
+     * Clears the Digits session store and writes it to disk before returning. Only then does the
+     * migration count as settled, as the marker must not outlive a store still holding a session.
+     */
+    @WorkerThread
     public void clearDigitsSession() {
-        if (mDigitsSharedPreferences != null) {
-            mDigitsSharedPreferences.edit().clear().apply();
+        final SharedPreferences preferences = getDigitsSharedPreferences();
+        final boolean committed = preferences == null || preferences.edit().clear().commit();
+        // clear() does not notify listeners before API 30.
+        invalidateCachedSession();
+        if (committed) {
+            markMigrationSettled();
+        } else {
+            Log.w(TAG, "Unable to write the Digits session store");
         }
     }
 
     public boolean hasDigitsSession() {
-        return (mDigitsSharedPreferences != null)
-                &&
-                ! TextUtils.isEmpty(
-                        mDigitsSharedPreferences.getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null)
-                );
+        return !TextUtils.isEmpty(getDigitsSessionJson());
     }
 
+    /**
+     * Encodes the session as an unsigned, unpadded Base64url JWT without going through
+     * {@link org.json.JSONObject}.
+     */
     @NonNull
-    public String getUnsignedJWT(@NonNull JSONObject payload) {
-        return BASE_64_NONE_ALGORITHM_JWT_HEADER
-                + "."
-                + Base64.encodeToString(payload.toString().getBytes(Charset.forName("UTF-8")),
-                Base64.DEFAULT)
-                + ".";
+    public String getUnsignedJWT(@NonNull RedeemableDigitsSession session) {
+        synchronized (mJwtWriter) {
+            return mJwtWriter.write(session);
+        }
+    }
+
+    private static final class CachedSession {
+        @Nullable
+        final String mJson;
+        @Nullable
+        final RedeemableDigitsSessionBuilder mParsed;
+
+        CachedSession(@Nullable String json, @Nullable RedeemableDigitsSessionBuilder parsed) {
+            mJson = json;
+            mParsed = parsed;
+        }
     }
 }
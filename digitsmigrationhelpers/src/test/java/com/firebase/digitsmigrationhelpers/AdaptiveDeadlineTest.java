@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AdaptiveDeadlineTest {
+    @Mock
+    StorageHelpers mockStorageHelpers;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void getDeadlineMillis_defaultWithoutExchanges() {
+        AdaptiveDeadline deadline = new AdaptiveDeadline(mockStorageHelpers);
+
+        assertEquals(AdaptiveDeadline.DEFAULT_DEADLINE_MILLIS, deadline.getDeadlineMillis());
+    }
+
+    @Test
+    public void getDeadlineMillis_followsPersistedAverage() {
+        when(mockStorageHelpers.getExchangeLatencyAverageMillis()).thenReturn(1000L);
+        AdaptiveDeadline deadline = new AdaptiveDeadline(mockStorageHelpers);
+
+        assertEquals(3000L, deadline.getDeadlineMillis());
+        assertEquals(3000L, deadline.getDeadlineMillis());
+        verify(mockStorageHelpers, times(1)).getExchangeLatencyAverageMillis();
+    }
+
+    @Test
+    public void getDeadlineMillis_isBounded() {
+        AdaptiveDeadline deadline = new AdaptiveDeadline(mockStorageHelpers);
+
+        deadline.recordExchangeLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(AdaptiveDeadline.MIN_DEADLINE_MILLIS, deadline.getDeadlineMillis());
+
+        deadline = new AdaptiveDeadline(mockStorageHelpers);
+        deadline.recordExchangeLatency(TimeUnit.MINUTES.toNanos(1));
+        assertEquals(AdaptiveDeadline.MAX_DEADLINE_MILLIS, deadline.getDeadlineMillis());
+    }
+
+    @Test
+    public void recordExchangeLatency_keepsMovingAverage() {
+        AdaptiveDeadline deadline = new AdaptiveDeadline(mockStorageHelpers);
+
+        deadline.recordExchangeLatency(TimeUnit.MILLISECONDS.toNanos(1000));
+        verify(mockStorageHelpers).putExchangeLatencyAverageMillis(1000L);
+        deadline.recordExchangeLatency(TimeUnit.MILLISECONDS.toNanos(2000));
+        verify(mockStorageHelpers).putExchangeLatencyAverageMillis(1250L);
+        assertEquals(3750L, deadline.getDeadlineMillis());
+    }
+}
@@ -15,10 +15,19 @@
 package com.firebase.digitsmigrationhelpers;
 
 import android.content.Context;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 
+import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.ExchangeCircuitOpenException;
 import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.ManifestMetadata;
 import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.auth.AdditionalUserInfo;
@@ -35,17 +44,36 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.annotation.Config;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import migration.auth.digits.google.com.digitsmigrationhelpers.BuildConfig;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 @RunWith(RobolectricGradleTestRunner.class)
@@ -66,6 +94,12 @@ public class AuthMigratorTest {
     private static final String DIGITS_CONSUMER_SECRET = "digits_consumer_secret";
     private static final String DIGITS_JWT = "digits_jwt";
     private static final String FABRIC_API_KEY = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
 
     @Mock
     FirebaseApp mockFirebaseApp;
@@ -74,21 +108,22 @@ public class AuthMigratorTest {
     @Mock
     FirebaseAuth mockFirebaseAuth;
     @Captor
-    private ArgumentCaptor<JSONObject> mjsonCaptor;
+    private ArgumentCaptor<RedeemableDigitsSession> mSessionCaptor;
     @Mock
     private FirebaseUser mockFirebaseUser;
+    @Mock
+    private Closeable mockExchangeLock;
     private AuthResult authResult;
     private Task<AuthResult> authResultTask;
 
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
-        when(mockStorageHelpers.getApiKeyFromManifest(any(Context.class), eq(StorageHelpers
-                .DIGITS_CONSUMER_KEY_KEY))).thenReturn(DIGITS_CONSUMER_KEY);
-        when(mockStorageHelpers.getApiKeyFromManifest(any(Context.class), eq(StorageHelpers
-                .DIGITS_CONSUMER_SECRET_KEY))).thenReturn(DIGITS_CONSUMER_SECRET);
-        when(mockStorageHelpers.getApiKeyFromManifest(any(Context.class), eq(StorageHelpers
-                .FABRIC_API_KEY_KEY))).thenReturn(FABRIC_API_KEY);
+        when(mockStorageHelpers.getManifestMetadata(any(Context.class))).thenReturn(
+                new ManifestMetadata(DIGITS_CONSUMER_KEY, DIGITS_CONSUMER_SECRET, FABRIC_API_KEY));
+        when(mockStorageHelpers.clearDigitsSessionAsync(any(Executor.class)))
+                .thenReturn(Tasks.<Void>forResult(null));
+        when(mockStorageHelpers.tryLockExchange()).thenReturn(mockExchangeLock);
         authResult = new AuthResult() {
             @Override
             public FirebaseUser getUser() {
@@ -107,14 +142,14 @@ public class AuthMigratorTest {
     @Test
     public void migrateAndClear_tokenFound() throws JSONException {
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
-        when(mockStorageHelpers.getUnsignedJWT(mjsonCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
         when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         assertTrue(authMigrator.migrate(true).isSuccessful());
         verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
-        verify(mockStorageHelpers).clearDigitsSession();
-        checkCompleteJsonObject(mjsonCaptor.getValue());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        checkCompleteJsonObject(mSessionCaptor.getValue().getPayload());
     }
 
     @Test
@@ -122,14 +157,14 @@ public class AuthMigratorTest {
         Task<AuthResult> task = Tasks.forException(new FirebaseWebRequestException("msg", 400));
 
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
-        when(mockStorageHelpers.getUnsignedJWT(mjsonCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
         when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(task);
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         assertFalse(authMigrator.migrate(true).isSuccessful());
         verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
-        verify(mockStorageHelpers).clearDigitsSession();
-        checkCompleteJsonObject(mjsonCaptor.getValue());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        checkCompleteJsonObject(mSessionCaptor.getValue().getPayload());
     }
 
     @Test
@@ -137,14 +172,14 @@ public class AuthMigratorTest {
         Task<AuthResult> task = Tasks.forException(new FirebaseWebRequestException("msg", 403));
 
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
-        when(mockStorageHelpers.getUnsignedJWT(mjsonCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
         when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(task);
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         assertFalse(authMigrator.migrate(true).isSuccessful());
         verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
-        verify(mockStorageHelpers).clearDigitsSession();
-        checkCompleteJsonObject(mjsonCaptor.getValue());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        checkCompleteJsonObject(mSessionCaptor.getValue().getPayload());
     }
 
     @Test
@@ -152,29 +187,29 @@ public class AuthMigratorTest {
         Task<AuthResult> task = Tasks.forException(new FirebaseWebRequestException("msg", 403));
 
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
-        when(mockStorageHelpers.getUnsignedJWT(mjsonCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
         when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(task);
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         assertFalse(authMigrator.migrate(false).isSuccessful());
         verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
-        verify(mockStorageHelpers, times(0)).clearDigitsSession();
-        checkCompleteJsonObject(mjsonCaptor.getValue());
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+        checkCompleteJsonObject(mSessionCaptor.getValue().getPayload());
     }
 
     @Test
     public void migrateAndKeep_tokenFound() throws JSONException {
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
-        when(mockStorageHelpers.getUnsignedJWT(mjsonCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
         when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
 
         assertTrue(authMigrator.migrate(false).isSuccessful());
         verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
-        verify(mockStorageHelpers, times(0)).clearDigitsSession();
-        checkCompleteJsonObject(mjsonCaptor.getValue());
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+        checkCompleteJsonObject(mSessionCaptor.getValue().getPayload());
     }
 
     @Test
@@ -182,10 +217,10 @@ public class AuthMigratorTest {
         when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
 
         assertTrue(authMigrator.migrate(true).isSuccessful());
-        verify(mockStorageHelpers).clearDigitsSession();
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
         verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
     }
 
@@ -194,9 +229,9 @@ public class AuthMigratorTest {
         when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         assertTrue(authMigrator.migrate(false).isSuccessful());
-        verify(mockStorageHelpers, times(0)).clearDigitsSession();
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
         verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
     }
 
@@ -205,20 +240,52 @@ public class AuthMigratorTest {
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(null);
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         assertTrue(authMigrator.migrate(true).isSuccessful());
         verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
     }
 
+    @Test
+    public void migrate_noLegacyTokenMarksSettled() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(null);
+
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        assertTrue(authMigrator.migrate(false).isSuccessful());
+        verify(mockStorageHelpers).markMigrationSettled();
+    }
+
+    @Test
+    public void migrate_settledSkipsSessionStore() {
+        when(mockStorageHelpers.isMigrationSettled()).thenReturn(true);
+
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        assertTrue(authMigrator.migrate(true).isSuccessful());
+        verify(mockStorageHelpers, times(0)).getDigitsSessionJson();
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+        verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
+    }
+
+    @Test
+    public void migrate_foundFirebaseSessionSkipsSessionStore() {
+        when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
+
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        assertTrue(authMigrator.migrate(false).isSuccessful());
+        verify(mockStorageHelpers, times(0)).getDigitsSessionJson();
+    }
+
     @Test
     public void migrateAndClear_invalidToken() {
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn("invalid_session");
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
 
         assertTrue(authMigrator.migrate(true).isSuccessful());
-        verify(mockStorageHelpers).clearDigitsSession();
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
         verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
     }
 
@@ -227,20 +294,20 @@ public class AuthMigratorTest {
         when(mockStorageHelpers.getDigitsSessionJson()).thenReturn("invalid_session");
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
 
         assertTrue(authMigrator.migrate(false).isSuccessful());
-        verify(mockStorageHelpers,times(0)).clearDigitsSession();
+        verify(mockStorageHelpers,times(0)).clearDigitsSessionAsync(any(Executor.class));
         verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
     }
 
     @Test
     public void migrateCustomSession() throws JSONException {
-        when(mockStorageHelpers.getUnsignedJWT(mjsonCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
         when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
 
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
         RedeemableDigitsSessionBuilder builder = new RedeemableDigitsSessionBuilder()
                 .setAuthToken(AUTH_TOKEN)
                 .setAuthTokenSecret(AUTH_TOKEN_SECRET)
@@ -251,7 +318,7 @@ public class AuthMigratorTest {
         assertTrue(authMigrator.migrate(builder).isSuccessful());
         verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
 
-        JSONObject jsonObject = mjsonCaptor.getValue();
+        JSONObject jsonObject = mSessionCaptor.getValue().getPayload();
         assertTrue(jsonObject.isNull("id"));
         assertTrue(jsonObject.isNull("phone_number"));
         assertTrue(jsonObject.isNull("email_address"));
@@ -263,11 +330,867 @@ public class AuthMigratorTest {
         assertEquals(AUTH_TOKEN_SECRET, jsonObject.getString("auth_token_secret"));
     }
 
+    @Test
+    public void migrate_joinsRunningMigration() {
+        TaskCompletionSource<AuthResult> exchange = new TaskCompletionSource<>();
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(exchange.getTask());
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<Void> first = authMigrator.migrate(true);
+        Task<Void> second = authMigrator.migrate(true);
+        assertSame(first, second);
+        assertSame(first, authMigrator.getMigrationTask());
+        assertFalse(first.isComplete());
+        verify(mockFirebaseAuth, times(1)).signInWithCustomToken(DIGITS_JWT);
+
+        exchange.setResult(authResult);
+        assertTrue(first.isSuccessful());
+        assertSame(first, authMigrator.getMigrationTask());
+        verify(mockStorageHelpers, times(1)).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrate_restartsAfterCompletion() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 500)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertNull(authMigrator.getMigrationTask());
+        Task<Void> first = authMigrator.migrate(true);
+        assertFalse(first.isSuccessful());
+        Task<Void> second = authMigrator.migrate(true);
+        assertNotSame(first, second);
+        verify(mockFirebaseAuth, times(2)).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrate_runsOnProvidedExecutor() {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor queueingExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                queued.add(command);
+            }
+        };
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<Void> task = authMigrator.migrate(true, queueingExecutor);
+        assertFalse(task.isComplete());
+        verifyZeroInteractions(mockStorageHelpers);
+
+        while (!queued.isEmpty()) {
+            queued.remove(0).run();
+        }
+        assertTrue(task.isSuccessful());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrate_signedInUserFoundLastDropsSpeculativeWork() {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor queueingExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                queued.add(command);
+            }
+        };
+        when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<MigrationResult> task = authMigrator.migrateForResult(false, queueingExecutor);
+        queued.remove(0).run();
+        // The user check, the session read and the manifest lookup, run last to first.
+        assertEquals(3, queued.size());
+        while (!queued.isEmpty()) {
+            queued.remove(queued.size() - 1).run();
+        }
+        assertEquals(MigrationResult.Status.ALREADY_SIGNED_IN, task.getResult().getStatus());
+        verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
+    }
+
+    @Test
+    public void migrate_readsSessionAndManifestInParallel() throws InterruptedException {
+        final CountDownLatch sessionRead = new CountDownLatch(1);
+        final CountDownLatch manifestRead = new CountDownLatch(1);
+        when(mockStorageHelpers.getDigitsSessionJson()).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws InterruptedException {
+                sessionRead.countDown();
+                assertTrue(manifestRead.await(5, TimeUnit.SECONDS));
+                return VALID_DIGITS_SESSION;
+            }
+        });
+        when(mockStorageHelpers.getManifestMetadata(any(Context.class))).thenAnswer(
+                new Answer<ManifestMetadata>() {
+                    @Override
+                    public ManifestMetadata answer(InvocationOnMock invocation)
+                            throws InterruptedException {
+                        manifestRead.countDown();
+                        assertTrue(sessionRead.await(5, TimeUnit.SECONDS));
+                        return new ManifestMetadata(DIGITS_CONSUMER_KEY, DIGITS_CONSUMER_SECRET,
+                                FABRIC_API_KEY);
+                    }
+                });
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                    mockFirebaseAuth, executor);
+
+            MigrationResult result = await(authMigrator.migrateForResult(false));
+            assertEquals(MigrationResult.Status.EXCHANGED, result.getStatus());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void migrate_reportsPhasesToListener() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        RecordingMigrationListener listener = new RecordingMigrationListener();
+        authMigrator.setMigrationListener(listener);
+
+        assertTrue(authMigrator.migrate(true).isSuccessful());
+        assertEquals(Arrays.asList("+PREFS_READ", "-PREFS_READ", "+PARSE", "-PARSE",
+                "+MANIFEST_READ", "-MANIFEST_READ", "+ENCODE", "-ENCODE", "+EXCHANGE",
+                "-EXCHANGE", "+CLEANUP", "-CLEANUP"), listener.mEvents);
+    }
+
+    @Test
+    public void migrate_endsExchangePhaseWhenSignInThrows() throws IOException {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenThrow(new IllegalStateException());
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        RecordingMigrationListener listener = new RecordingMigrationListener();
+        authMigrator.setMigrationListener(listener);
+
+        assertTrue(authMigrator.migrate(true).isComplete());
+        List<String> events = listener.mEvents;
+        assertEquals(Arrays.asList("+EXCHANGE", "-EXCHANGE"),
+                events.subList(events.indexOf("+EXCHANGE"), events.size()));
+        verify(mockExchangeLock).close();
+    }
+
+    @Test
+    public void migrateCustomSession_reportsPhasesToListener() {
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        RecordingMigrationListener listener = new RecordingMigrationListener();
+        authMigrator.setMigrationListener(listener);
+
+        assertTrue(authMigrator.migrate(customSession(AUTH_TOKEN)).isSuccessful());
+        assertEquals(Arrays.asList("+ENCODE", "-ENCODE", "+EXCHANGE", "-EXCHANGE"),
+                listener.mEvents);
+    }
+
+    @Test
+    public void migrate_tracingEnabled() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        RecordingMigrationListener listener = new RecordingMigrationListener();
+        authMigrator.setMigrationListener(listener);
+
+        AuthMigrator.setTracingEnabled(true);
+        try {
+            assertTrue(authMigrator.migrate(true).isSuccessful());
+        } finally {
+            AuthMigrator.setTracingEnabled(false);
+        }
+        assertEquals(12, listener.mEvents.size());
+    }
+
+    @Test
+    public void getStatsSnapshot_countsMigrations() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenReturn(Tasks.<AuthResult>forException(
+                        new FirebaseWebRequestException("msg", 500)))
+                .thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        authMigrator.migrate(false);
+        authMigrator.migrate(false);
+        MigrationStats stats = authMigrator.getStatsSnapshot();
+        assertEquals(1, stats.getCount(MigrationResult.Status.TRANSIENT_FAILURE));
+        assertEquals(1, stats.getCount(MigrationResult.Status.EXCHANGED));
+        assertEquals(2, stats.getTotalCount());
+        assertEquals(2, stats.getExchangeAttemptCount());
+        long latencies = 0;
+        for (int i = 0; i < stats.getExchangeLatencyBucketCount(); i++) {
+            latencies += stats.getExchangeLatencyCount(i);
+        }
+        assertEquals(2, latencies);
+    }
+
+    @Test
+    public void migrate_reusesParsedSession() {
+        RedeemableDigitsSessionBuilder parsed = customSession(AUTH_TOKEN)
+                .setConsumerKey(null)
+                .setConsumerSecret(null)
+                .setFabricApiKey(null);
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getParsedDigitsSession(VALID_DIGITS_SESSION)).thenReturn(parsed);
+        when(mockStorageHelpers.getUnsignedJWT(mSessionCaptor.capture())).thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertTrue(authMigrator.migrate(false).isSuccessful());
+        assertEquals(AUTH_TOKEN, mSessionCaptor.getValue().getAuthToken());
+        assertEquals(DIGITS_CONSUMER_KEY, mSessionCaptor.getValue().getConsumerKey());
+        verify(mockStorageHelpers, times(0)).putParsedDigitsSession(any(String.class),
+                any(RedeemableDigitsSessionBuilder.class));
+    }
+
+    @Test
+    public void migrate_keepsParsedSession() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenReturn(Tasks.<AuthResult>forException(
+                        new FirebaseWebRequestException("msg", 500)));
+        ArgumentCaptor<RedeemableDigitsSessionBuilder> parsed =
+                ArgumentCaptor.forClass(RedeemableDigitsSessionBuilder.class);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertFalse(authMigrator.migrate(false).isSuccessful());
+        verify(mockStorageHelpers).putParsedDigitsSession(
+                eq(VALID_DIGITS_SESSION), parsed.capture());
+        try {
+            parsed.getValue().build();
+            fail("The kept session must not be completed with the manifest keys");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void migrate_resolvesOnceCleanupIsDurable() {
+        TaskCompletionSource<Void> cleanup = new TaskCompletionSource<>();
+        when(mockStorageHelpers.clearDigitsSessionAsync(DIRECT_EXECUTOR))
+                .thenReturn(cleanup.getTask());
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<MigrationResult> task = authMigrator.migrateForResult(true);
+        assertFalse(task.isComplete());
+        cleanup.setResult(null);
+        assertEquals(MigrationResult.Status.EXCHANGED, task.getResult().getStatus());
+        verify(mockStorageHelpers, times(0)).clearDigitsSession();
+    }
+
+    @Test
+    public void migrate_cleanupFailureKeepsResult() {
+        when(mockStorageHelpers.clearDigitsSessionAsync(DIRECT_EXECUTOR))
+                .thenReturn(Tasks.<Void>forException(new IOException()));
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn("invalid_session");
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.CORRUPT_SESSION, result.getStatus());
+    }
+
+    @Test
+    public void migrateForResult_exchanged() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.EXCHANGED, result.getStatus());
+        assertTrue(result.isSuccessful());
+        assertSame(mockFirebaseUser, result.getUser());
+        assertNull(result.getException());
+        for (MigrationPhase phase : MigrationPhase.values()) {
+            assertTrue(phase.name(), result.getPhaseNanos(phase) >= 0);
+        }
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrateForResult_rejected() {
+        FirebaseWebRequestException exception = new FirebaseWebRequestException("msg", 403);
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenReturn(Tasks.<AuthResult>forException(exception));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.REJECTED, result.getStatus());
+        assertFalse(result.isSuccessful());
+        assertNull(result.getUser());
+        assertSame(exception, result.getException());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrateForResult_transientFailureKeepsSession() {
+        FirebaseWebRequestException exception = new FirebaseWebRequestException("msg", 500);
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenReturn(Tasks.<AuthResult>forException(exception));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.TRANSIENT_FAILURE, result.getStatus());
+        assertSame(exception, result.getException());
+        assertEquals(0, result.getPhaseNanos(MigrationPhase.CLEANUP));
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrateForResult_alreadySignedIn() {
+        when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(false).getResult();
+        assertEquals(MigrationResult.Status.ALREADY_SIGNED_IN, result.getStatus());
+        assertSame(mockFirebaseUser, result.getUser());
+        assertEquals(0, result.getTotalNanos());
+    }
+
+    @Test
+    public void migrateForResult_noSession() {
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(false).getResult();
+        assertEquals(MigrationResult.Status.NO_SESSION, result.getStatus());
+        assertNull(result.getUser());
+        assertNull(result.getException());
+        assertEquals(0, result.getPhaseNanos(MigrationPhase.PARSE));
+    }
+
+    @Test
+    public void migrateForResult_corruptSession() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn("invalid_session");
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.CORRUPT_SESSION, result.getStatus());
+        assertTrue(result.isSuccessful());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
+    }
+
+    @Test
+    public void migrateForResult_sharesRunningMigration() {
+        TaskCompletionSource<AuthResult> exchange = new TaskCompletionSource<>();
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(exchange.getTask());
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<Void> task = authMigrator.migrate(false);
+        Task<MigrationResult> resultTask = authMigrator.migrateForResult(false);
+        exchange.setResult(authResult);
+        assertTrue(task.isSuccessful());
+        assertEquals(MigrationResult.Status.EXCHANGED, resultTask.getResult().getStatus());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrateForResult_pendingAfterDeadline() throws InterruptedException {
+        TaskCompletionSource<AuthResult> exchange = new TaskCompletionSource<>();
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(exchange.getTask());
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = await(authMigrator.migrateForResult(true, 10, null));
+        assertEquals(MigrationResult.Status.PENDING, result.getStatus());
+        assertTrue(result.isSuccessful());
+        assertFalse(authMigrator.getMigrationTask().isComplete());
+
+        exchange.setResult(authResult);
+        assertTrue(authMigrator.getMigrationTask().isSuccessful());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        verify(mockStorageHelpers).putExchangeLatencyAverageMillis(any(Long.class));
+    }
+
+    @Test
+    public void migrateForResult_completesBeforeDeadline() throws InterruptedException {
+        when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = await(authMigrator.migrateForResult(false,
+                new CancellationSignal()));
+        assertEquals(MigrationResult.Status.ALREADY_SIGNED_IN, result.getStatus());
+    }
+
+    @Test
+    public void migrateForResult_cancelStopsWaiting() {
+        TaskCompletionSource<AuthResult> exchange = new TaskCompletionSource<>();
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(exchange.getTask());
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+
+        Task<MigrationResult> task = authMigrator.migrateForResult(false,
+                TimeUnit.MINUTES.toMillis(1), cancellationSignal);
+        assertFalse(task.isComplete());
+        cancellationSignal.cancel();
+        assertTrue(task.getException() instanceof OperationCanceledException);
+
+        exchange.setResult(authResult);
+        assertTrue(authMigrator.getMigrationTask().isSuccessful());
+    }
+
+    @Test
+    public void migrate_onDemandStartsWhenAskedFor() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        authMigrator.setMigrationSchedule(MigrationSchedule.ON_DEMAND);
+
+        Task<MigrationResult> resultTask = authMigrator.migrateForResult(true);
+        Task<Void> task = authMigrator.migrate(true);
+        assertFalse(resultTask.isComplete());
+        verifyZeroInteractions(mockFirebaseAuth);
+
+        assertSame(resultTask, authMigrator.getMigrationResultTask());
+        assertEquals(MigrationResult.Status.EXCHANGED, resultTask.getResult().getStatus());
+        assertSame(task, authMigrator.getMigrationTask());
+        assertTrue(task.isSuccessful());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrate_skipsRecentlyRejectedSession() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 403)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertEquals(MigrationResult.Status.REJECTED,
+                authMigrator.migrateForResult(false).getResult().getStatus());
+        verify(mockStorageHelpers).putRejectedSessionsJson(any(String.class));
+
+        MigrationResult result = authMigrator.migrateForResult(false).getResult();
+        assertEquals(MigrationResult.Status.REJECTED, result.getStatus());
+        assertEquals(403,
+                ((FirebaseWebRequestException) result.getException()).getHttpStatusCode());
+        assertFalse(authMigrator.migrate(customSession(AUTH_TOKEN)).isSuccessful());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+        assertEquals(1, authMigrator.getStatsSnapshot().getExchangeAttemptCount());
+    }
+
+    @Test
+    public void migrate_clearsRejectedSessionWithoutAuthToken() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn("{\"id\":" + DIGITS_ID + "}");
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 400)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertEquals(MigrationResult.Status.REJECTED,
+                authMigrator.migrateForResult(true).getResult().getStatus());
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        verify(mockStorageHelpers).putRejectedSessionsJson(any(String.class));
+
+        assertEquals(MigrationResult.Status.REJECTED,
+                authMigrator.migrateForResult(false).getResult().getStatus());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrate_pausesExchangesWhileServerKeepsFailing() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 503)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        for (int i = 0; i < ExchangeCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertEquals(MigrationResult.Status.TRANSIENT_FAILURE,
+                    authMigrator.migrateForResult(false).getResult().getStatus());
+        }
+        MigrationResult result = authMigrator.migrateForResult(false).getResult();
+        assertEquals(MigrationResult.Status.TRANSIENT_FAILURE, result.getStatus());
+        assertTrue(result.getException() instanceof ExchangeCircuitOpenException);
+        verify(mockFirebaseAuth, times(ExchangeCircuitBreaker.FAILURE_THRESHOLD))
+                .signInWithCustomToken(DIGITS_JWT);
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrate_probesAgainWhenSignInThrows() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockStorageHelpers.getExchangeFailureCount())
+                .thenReturn(ExchangeCircuitBreaker.FAILURE_THRESHOLD);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenThrow(new IllegalStateException())
+                .thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertFalse(authMigrator.migrate(false).isSuccessful());
+        assertEquals(MigrationResult.Status.EXCHANGED,
+                authMigrator.migrateForResult(false).getResult().getStatus());
+        verify(mockFirebaseAuth, times(2)).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrate_recordsOutcomeForOtherProcesses() throws Exception {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertEquals(MigrationResult.Status.EXCHANGED,
+                authMigrator.migrateForResult(false).getResult().getStatus());
+        verify(mockStorageHelpers).putExchangeOutcome(any(String.class));
+        verify(mockExchangeLock).close();
+    }
+
+    @Test
+    public void migrate_takesOutcomeOfOtherProcess() throws Exception {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getExchangeOutcome()).thenReturn(new JSONObject()
+                .put("pid", Process.myPid() + 1)
+                .put("session", RejectedSessionCache.key(
+                        RedeemableDigitsSessionBuilder.fromSessionJson(VALID_DIGITS_SESSION)
+                                .setConsumerKey(DIGITS_CONSUMER_KEY)
+                                .setConsumerSecret(DIGITS_CONSUMER_SECRET)
+                                .setFabricApiKey(FABRIC_API_KEY)
+                                .build()))
+                .put("at", System.currentTimeMillis())
+                .toString());
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.EXCHANGED_IN_OTHER_PROCESS, result.getStatus());
+        assertTrue(result.isSuccessful());
+        verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+        verify(mockExchangeLock).close();
+    }
+
+    @Test
+    public void migrate_keepsSessionOutsideRollout() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        authMigrator.setRolloutPolicy(
+                new RolloutPolicy.Builder().setRolloutPercentage(0).build());
+
+        MigrationResult result = authMigrator.migrateForResult(true).getResult();
+        assertEquals(MigrationResult.Status.NOT_ROLLED_OUT, result.getStatus());
+        assertTrue(result.isSuccessful());
+        verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+        verify(mockStorageHelpers, times(0)).markMigrationSettled();
+    }
+
+    @Test
+    public void migrate_delaysExchangeInRollout() throws InterruptedException {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        authMigrator.setRolloutPolicy(new RolloutPolicy.Builder()
+                .setMaxStartDelay(200, TimeUnit.MILLISECONDS)
+                .setRandom(new Random() {
+                    @Override
+                    public double nextDouble() {
+                        return 1.0;
+                    }
+                })
+                .build());
+
+        Task<MigrationResult> task = authMigrator.migrateForResult(true);
+        assertFalse(task.isComplete());
+        verify(mockFirebaseAuth, times(0)).signInWithCustomToken(any(String.class));
+        assertEquals(MigrationResult.Status.EXCHANGED, await(task).getStatus());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrate_retriesTransientFailures() throws InterruptedException {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT))
+                .thenReturn(Tasks.<AuthResult>forException(
+                        new FirebaseWebRequestException("msg", 503)))
+                .thenReturn(Tasks.<AuthResult>forException(
+                        new FirebaseWebRequestException("msg", 429, 1)))
+                .thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        authMigrator.setRetryPolicy(new RetryPolicy.Builder()
+                .setInitialBackoff(1, TimeUnit.MILLISECONDS)
+                .build());
+
+        MigrationResult result = await(authMigrator.migrateForResult(true));
+        assertEquals(MigrationResult.Status.EXCHANGED, result.getStatus());
+        verify(mockFirebaseAuth, times(3)).signInWithCustomToken(DIGITS_JWT);
+        verify(mockStorageHelpers).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrate_doesNotRetryRejectedSession() {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 403)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        authMigrator.setRetryPolicy(new RetryPolicy.Builder().build());
+
+        assertEquals(MigrationResult.Status.REJECTED,
+                authMigrator.migrateForResult(false).getResult().getStatus());
+        verify(mockFirebaseAuth).signInWithCustomToken(DIGITS_JWT);
+    }
+
+    @Test
+    public void migrate_givesUpAfterMaxAttempts() throws InterruptedException {
+        when(mockStorageHelpers.getDigitsSessionJson()).thenReturn(VALID_DIGITS_SESSION);
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn(DIGITS_JWT);
+        when(mockFirebaseAuth.signInWithCustomToken(DIGITS_JWT)).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 500)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        authMigrator.setRetryPolicy(new RetryPolicy.Builder()
+                .setMaxAttempts(2)
+                .setInitialBackoff(1, TimeUnit.MILLISECONDS)
+                .build());
+
+        MigrationResult result = await(authMigrator.migrateForResult(true));
+        assertEquals(MigrationResult.Status.TRANSIENT_FAILURE, result.getStatus());
+        verify(mockFirebaseAuth, times(2)).signInWithCustomToken(DIGITS_JWT);
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrateAll_reportsEachSession() {
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) {
+                        return ((RedeemableDigitsSession) invocation.getArguments()[0])
+                                .getAuthToken();
+                    }
+                });
+        when(mockFirebaseAuth.signInWithCustomToken("exchanged")).thenReturn(authResultTask);
+        when(mockFirebaseAuth.signInWithCustomToken("rejected")).thenReturn(
+                Tasks.<AuthResult>forException(new FirebaseWebRequestException("msg", 400)));
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        final List<Integer> reported = new ArrayList<>();
+
+        List<MigrationResult> results = authMigrator.migrateAll(Arrays.asList(
+                customSession("exchanged"),
+                customSession("invalid").setFabricApiKey("not_a_fabric_key"),
+                customSession("rejected")), 2, new BatchMigrationListener() {
+                    @Override
+                    public void onMigrationResult(int index, @NonNull MigrationResult result) {
+                        reported.add(index);
+                    }
+                }).getResult();
+        assertEquals(3, results.size());
+        assertEquals(MigrationResult.Status.EXCHANGED, results.get(0).getStatus());
+        assertSame(mockFirebaseUser, results.get(0).getUser());
+        assertEquals(MigrationResult.Status.CORRUPT_SESSION, results.get(1).getStatus());
+        assertTrue(results.get(1).getException() instanceof IllegalArgumentException);
+        assertEquals(MigrationResult.Status.REJECTED, results.get(2).getStatus());
+        assertEquals(3, reported.size());
+        verify(mockFirebaseAuth, times(2)).signInWithCustomToken(any(String.class));
+        verify(mockStorageHelpers, times(0)).clearDigitsSessionAsync(any(Executor.class));
+    }
+
+    @Test
+    public void migrateAll_completesWhenSessionsThrow() {
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) {
+                        String token = ((RedeemableDigitsSession) invocation.getArguments()[0])
+                                .getAuthToken();
+                        if (token.equals("unencodable")) {
+                            throw new IllegalStateException();
+                        }
+                        return token;
+                    }
+                });
+        when(mockFirebaseAuth.signInWithCustomToken("throwing"))
+                .thenThrow(new IllegalStateException());
+        when(mockFirebaseAuth.signInWithCustomToken("exchanged")).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<List<MigrationResult>> task = authMigrator.migrateAll(Arrays.asList(null,
+                customSession("unencodable"), customSession("throwing"),
+                customSession("exchanged")), 2, null);
+        assertTrue(task.isComplete());
+        List<MigrationResult> results = task.getResult();
+        assertEquals(MigrationResult.Status.CORRUPT_SESSION, results.get(0).getStatus());
+        assertTrue(results.get(0).getException() instanceof NullPointerException);
+        assertEquals(MigrationResult.Status.CORRUPT_SESSION, results.get(1).getStatus());
+        assertEquals(MigrationResult.Status.TRANSIENT_FAILURE, results.get(2).getStatus());
+        assertTrue(results.get(2).getException() instanceof IllegalStateException);
+        assertEquals(MigrationResult.Status.EXCHANGED, results.get(3).getStatus());
+    }
+
+    @Test
+    public void migrateAll_completesWhenListenerThrows() {
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenReturn("exchanged");
+        when(mockFirebaseAuth.signInWithCustomToken("exchanged")).thenReturn(authResultTask);
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+        final List<Integer> reported = new ArrayList<>();
+
+        Task<List<MigrationResult>> task = authMigrator.migrateAll(Arrays.asList(
+                customSession("exchanged"), customSession("exchanged"),
+                customSession("exchanged")), 1, new BatchMigrationListener() {
+                    @Override
+                    public void onMigrationResult(int index, @NonNull MigrationResult result) {
+                        reported.add(index);
+                        throw new IllegalStateException();
+                    }
+                });
+        assertTrue(task.isComplete());
+        assertEquals(3, task.getResult().size());
+        assertEquals(Arrays.asList(0, 1, 2), reported);
+    }
+
+    @Test
+    public void migrateAll_limitsConcurrentExchanges() {
+        List<TaskCompletionSource<AuthResult>> exchanges = new ArrayList<>();
+        List<RedeemableDigitsSessionBuilder> builders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            TaskCompletionSource<AuthResult> exchange = new TaskCompletionSource<>();
+            exchanges.add(exchange);
+            builders.add(customSession("token" + i));
+            when(mockFirebaseAuth.signInWithCustomToken("token" + i))
+                    .thenReturn(exchange.getTask());
+        }
+        when(mockStorageHelpers.getUnsignedJWT(any(RedeemableDigitsSession.class)))
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) {
+                        return ((RedeemableDigitsSession) invocation.getArguments()[0])
+                                .getAuthToken();
+                    }
+                });
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        Task<List<MigrationResult>> task = authMigrator.migrateAll(builders, 2, null);
+        verify(mockFirebaseAuth, times(2)).signInWithCustomToken(any(String.class));
+
+        exchanges.get(1).setResult(authResult);
+        verify(mockFirebaseAuth).signInWithCustomToken("token2");
+        verify(mockFirebaseAuth, times(3)).signInWithCustomToken(any(String.class));
+
+        exchanges.get(0).setException(new FirebaseWebRequestException("msg", 503));
+        exchanges.get(2).setResult(authResult);
+        assertFalse(task.isComplete());
+        exchanges.get(3).setResult(authResult);
+
+        List<MigrationResult> results = task.getResult();
+        assertEquals(MigrationResult.Status.TRANSIENT_FAILURE, results.get(0).getStatus());
+        assertEquals(MigrationResult.Status.EXCHANGED, results.get(1).getStatus());
+        assertEquals(MigrationResult.Status.EXCHANGED, results.get(2).getStatus());
+        assertEquals(MigrationResult.Status.EXCHANGED, results.get(3).getStatus());
+    }
+
+    @Test
+    public void migrateAll_emptyBatch() {
+        AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
+                mockFirebaseAuth, DIRECT_EXECUTOR);
+
+        assertTrue(authMigrator.migrateAll(new ArrayList<RedeemableDigitsSessionBuilder>(), 1,
+                null).getResult().isEmpty());
+    }
+
     @Test
     public void hasLegacyAuth() throws JSONException {
         when(mockStorageHelpers.hasDigitsSession()).thenReturn(true);
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
 
         assertTrue(authMigrator.hasLegacyAuth());
     }
@@ -275,12 +1198,33 @@ public class AuthMigratorTest {
     @Test
     public void clearLegacyAuth() throws JSONException {
         AuthMigrator authMigrator = new AuthMigrator(mockFirebaseApp, mockStorageHelpers,
-                mockFirebaseAuth);
+                mockFirebaseAuth, DIRECT_EXECUTOR);
 
         authMigrator.clearLegacyAuth();
         verify(mockStorageHelpers).clearDigitsSession();
     }
 
+    private static RedeemableDigitsSessionBuilder customSession(String authToken) {
+        return new RedeemableDigitsSessionBuilder()
+                .setAuthToken(authToken)
+                .setAuthTokenSecret(AUTH_TOKEN_SECRET)
+                .setConsumerKey(DIGITS_CONSUMER_KEY)
+                .setConsumerSecret(DIGITS_CONSUMER_SECRET)
+                .setFabricApiKey(FABRIC_API_KEY);
+    }
+
+    private static <T> T await(Task<T> task) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        task.addOnCompleteListener(DIRECT_EXECUTOR, new OnCompleteListener<T>() {
+            @Override
+            public void onComplete(@NonNull Task<T> task) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return task.getResult();
+    }
+
     private void checkCompleteJsonObject(JSONObject jsonObject) throws JSONException {
         assertEquals(DIGITS_ID, jsonObject.getLong("id"));
         assertEquals(PHONE_NUMBER, jsonObject.getString("phone_number"));
@@ -292,4 +1236,19 @@ public class AuthMigratorTest {
         assertEquals(DIGITS_CONSUMER_SECRET, jsonObject.getString("app_consumer_secret"));
         assertEquals(FABRIC_API_KEY, jsonObject.getString("fabric_api_key"));
     }
+
+    private static final class RecordingMigrationListener implements MigrationListener {
+        private final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onPhaseStarted(@NonNull MigrationPhase phase, long startNanos) {
+            mEvents.add("+" + phase);
+        }
+
+        @Override
+        public void onPhaseEnded(@NonNull MigrationPhase phase, long startNanos, long endNanos) {
+            assertTrue(endNanos >= startNanos);
+            mEvents.add("-" + phase);
+        }
+    }
 }
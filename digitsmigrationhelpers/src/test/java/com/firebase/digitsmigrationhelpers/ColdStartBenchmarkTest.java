@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Guards what {@code AuthMigrator.getInstance(app).migrate(true)} adds to
+ * {@code Application.onCreate}, against the baselines in cold_start_baselines.properties.
+ * <p>
+ * Only the calling thread is measured, in CPU time, so that the executor threads taking over the
+ * CPU do not count. The migration runs on the default executor against the shared preferences
+ * and files of the Robolectric application, and every run gets a new {@link FirebaseApp}, so
+ * that it creates its migrator from scratch. The device is reset and the previous migration
+ * awaited outside the measured region. Without a manifest, the exchange of the valid session
+ * stops at encoding, so no request leaves the test. The median of the quietest of several rounds
+ * is compared to the baseline.
+ * <p>
+ * An already signed in user is not covered: the real {@code FirebaseAuth} cannot sign in
+ * offline, and the check runs on the executor, so it adds nothing to the calling thread.
+ * <p>
+ * When a change is expected to move the numbers, update the baselines from the values in the
+ * failure message, in a commit of its own that explains the increase.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ColdStartBenchmarkTest {
+    private static final String BASELINES = "cold_start_baselines.properties";
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int MEASURED_ITERATIONS = 200;
+    private static final double TIME_TOLERANCE = 2;
+    private static final double ALLOCATION_TOLERANCE = 1.2;
+    private static final long MIGRATION_TIMEOUT_SECONDS = 10;
+
+    private static final String VALID_SESSION = "{\"email\":{\"address\":\"a@b.com\","
+            + "\"is_verified\":false},\"phone_number\":\"5551234567\",\"auth_token\":{"
+            + "\"auth_type\":\"oauth1a\",\"auth_token\":{\"secret\":\"auth_token_secret\","
+            + "\"token\":\"auth_token\",\"created_at\":0}},\"id\":112}";
+    private static final FirebaseOptions OPTIONS = new FirebaseOptions.Builder()
+            .setApplicationId("1:123456789012:android:0123456789abcdef")
+            .setApiKey("api_key")
+            .build();
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private enum Scenario {
+        NO_SESSION,
+        VALID_SESSION,
+        CORRUPT_SESSION
+    }
+
+    private Context mContext;
+    private int mAppCount;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        // AuthMigrator signs in with the default app.
+        if (FirebaseApp.getApps(mContext).isEmpty()) {
+            FirebaseApp.initializeApp(mContext, OPTIONS);
+        }
+    }
+
+    @Test
+    public void noSession() throws Exception {
+        assertWithinBaseline(Scenario.NO_SESSION);
+    }
+
+    @Test
+    public void validSession() throws Exception {
+        assertWithinBaseline(Scenario.VALID_SESSION);
+    }
+
+    @Test
+    public void corruptSession() throws Exception {
+        assertWithinBaseline(Scenario.CORRUPT_SESSION);
+    }
+
+    private void assertWithinBaseline(@NonNull Scenario scenario) throws Exception {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        Assume.assumeTrue(threads != null);
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            resetDevice(scenario);
+            FirebaseApp app = newApp();
+            await(AuthMigrator.getInstance(app).migrate(true));
+            app.delete();
+        }
+        // Noise only ever adds time, so the quietest round is the one closest to the real cost.
+        long medianNanos = Long.MAX_VALUE;
+        long medianBytes = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long[] nanos = new long[MEASURED_ITERATIONS];
+            long[] bytes = new long[MEASURED_ITERATIONS];
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                resetDevice(scenario);
+                FirebaseApp app = newApp();
+                long startBytes = threads.getThreadAllocatedBytes(threadId);
+                long startNanos = threads.getCurrentThreadCpuTime();
+                Task<Void> migration = AuthMigrator.getInstance(app).migrate(true);
+                nanos[i] = threads.getCurrentThreadCpuTime() - startNanos;
+                bytes[i] = threads.getThreadAllocatedBytes(threadId) - startBytes;
+                await(migration);
+                app.delete();
+            }
+            medianNanos = Math.min(medianNanos, median(nanos));
+            medianBytes = Math.min(medianBytes, median(bytes));
+        }
+
+        Properties baselines = loadBaselines();
+        String key = scenario.name().toLowerCase();
+        long baselineNanos = Long.parseLong(baselines.getProperty(key + ".nanos"));
+        long baselineBytes = Long.parseLong(baselines.getProperty(key + ".bytes"));
+        String measured = key + ".nanos=" + medianNanos + ", " + key + ".bytes=" + medianBytes;
+        assertTrue("Time regressed: " + measured,
+                medianNanos <= baselineNanos * TIME_TOLERANCE);
+        assertTrue("Allocations regressed: " + measured,
+                medianBytes <= baselineBytes * ALLOCATION_TOLERANCE);
+    }
+
+    /** Puts the session store of the scenario on disk, as left by the Digits SDK. */
+    private void resetDevice(@NonNull Scenario scenario) {
+        SharedPreferences.Editor session = mContext.getSharedPreferences(
+                StorageHelpers.DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE).edit().clear();
+        if (scenario == Scenario.VALID_SESSION) {
+            session.putString(StorageHelpers.DIGITS_PREF_KEY_ACTIVE_SESSION, VALID_SESSION);
+        } else if (scenario == Scenario.CORRUPT_SESSION) {
+            session.putString(StorageHelpers.DIGITS_PREF_KEY_ACTIVE_SESSION, "invalid_session");
+        }
+        assertTrue(session.commit());
+        assertTrue(mContext.getSharedPreferences(StorageHelpers.MIGRATION_PREF_FILE_NAME,
+                Context.MODE_PRIVATE).edit().clear().commit());
+        File filesDir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? mContext.getNoBackupFilesDir()
+                : mContext.getFilesDir();
+        new File(filesDir, StorageHelpers.MIGRATION_SETTLED_FILE_NAME).delete();
+        new File(filesDir, StorageHelpers.EXCHANGE_OUTCOME_FILE_NAME).delete();
+    }
+
+    @NonNull
+    private FirebaseApp newApp() {
+        return FirebaseApp.initializeApp(mContext, OPTIONS, "cold_start_" + mAppCount++);
+    }
+
+    /** Waits for the migration to finish, whatever its outcome, before the next run starts. */
+    private static void await(@NonNull Task<Void> migration) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        migration.addOnCompleteListener(DIRECT_EXECUTOR, new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(@NonNull Task<Void> task) {
+                latch.countDown();
+            }
+        });
+        assertTrue("Migration did not finish",
+                latch.await(MIGRATION_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @NonNull
+    private Properties loadBaselines() throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(BASELINES);
+        assertNotNull("Missing " + BASELINES, in);
+        try {
+            Properties baselines = new Properties();
+            baselines.load(in);
+            return baselines;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long median(@NonNull long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        return sunThreads.isThreadAllocatedMemorySupported()
+                && sunThreads.isThreadAllocatedMemoryEnabled()
+                && sunThreads.isCurrentThreadCpuTimeSupported()
+                && sunThreads.isThreadCpuTimeEnabled() ? sunThreads : null;
+    }
+}
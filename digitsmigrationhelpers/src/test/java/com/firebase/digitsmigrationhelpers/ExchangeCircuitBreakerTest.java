@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ExchangeCircuitBreakerTest {
+    private static final Exception SERVER_ERROR = new FirebaseWebRequestException("msg", 503);
+
+    @Mock
+    StorageHelpers mockStorageHelpers;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void tryAcquire_opensAfterConsecutiveTransientFailures() {
+        ExchangeCircuitBreaker breaker = new ExchangeCircuitBreaker(mockStorageHelpers);
+
+        for (int i = 0; i < ExchangeCircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onExchangeComplete(SERVER_ERROR);
+        }
+        assertTrue(breaker.tryAcquire());
+        breaker.onExchangeComplete(SERVER_ERROR);
+        assertFalse(breaker.tryAcquire());
+        verify(mockStorageHelpers).putExchangeFailureState(
+                eq(ExchangeCircuitBreaker.FAILURE_THRESHOLD), anyLong());
+    }
+
+    @Test
+    public void onExchangeComplete_answersResetFailures() {
+        ExchangeCircuitBreaker breaker = new ExchangeCircuitBreaker(mockStorageHelpers);
+
+        for (int i = 0; i < ExchangeCircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+            breaker.onExchangeComplete(SERVER_ERROR);
+        }
+        breaker.onExchangeComplete(new FirebaseWebRequestException("msg", 403));
+        breaker.onExchangeComplete(SERVER_ERROR);
+        assertTrue(breaker.tryAcquire());
+        verify(mockStorageHelpers).putExchangeFailureState(0, 0);
+    }
+
+    @Test
+    public void onExchangeComplete_ignoresNetworkFailures() {
+        ExchangeCircuitBreaker breaker = new ExchangeCircuitBreaker(mockStorageHelpers);
+
+        for (int i = 0; i < ExchangeCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onExchangeComplete(new IOException());
+        }
+        assertTrue(breaker.tryAcquire());
+        verify(mockStorageHelpers, never()).putExchangeFailureState(anyInt(), anyLong());
+    }
+
+    @Test
+    public void tryAcquire_restoresPersistedPause() {
+        when(mockStorageHelpers.getExchangeFailureCount())
+                .thenReturn(ExchangeCircuitBreaker.FAILURE_THRESHOLD);
+        when(mockStorageHelpers.getExchangePausedUntilMillis())
+                .thenReturn(System.currentTimeMillis() + 60000L);
+
+        assertFalse(new ExchangeCircuitBreaker(mockStorageHelpers).tryAcquire());
+    }
+
+    @Test
+    public void tryAcquire_ignoresPauseBeyondItsLength() {
+        when(mockStorageHelpers.getExchangeFailureCount())
+                .thenReturn(ExchangeCircuitBreaker.FAILURE_THRESHOLD);
+        when(mockStorageHelpers.getExchangePausedUntilMillis()).thenReturn(
+                System.currentTimeMillis() + 2 * ExchangeCircuitBreaker.PAUSE_MILLIS);
+
+        assertTrue(new ExchangeCircuitBreaker(mockStorageHelpers).tryAcquire());
+    }
+
+    @Test
+    public void tryAcquire_letsSingleProbeThroughOncePauseIsOver() {
+        when(mockStorageHelpers.getExchangeFailureCount())
+                .thenReturn(ExchangeCircuitBreaker.FAILURE_THRESHOLD);
+        when(mockStorageHelpers.getExchangePausedUntilMillis())
+                .thenReturn(System.currentTimeMillis() - 1);
+        ExchangeCircuitBreaker breaker = new ExchangeCircuitBreaker(mockStorageHelpers);
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.onExchangeComplete(SERVER_ERROR);
+        assertFalse("A failed probe pauses exchanges again", breaker.tryAcquire());
+
+        breaker = new ExchangeCircuitBreaker(mockStorageHelpers);
+        assertTrue(breaker.tryAcquire());
+        breaker.onExchangeComplete(null);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+}
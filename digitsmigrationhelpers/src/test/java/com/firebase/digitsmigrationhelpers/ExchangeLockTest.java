@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.firebase.digitsmigrationhelpers.internal.ExchangeLockTimeoutException;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ExchangeLockTest {
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    @Mock
+    StorageHelpers mockStorageHelpers;
+    @Mock
+    Closeable mockFileLock;
+    private ScheduledExecutorService mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        when(mockStorageHelpers.tryLockExchange()).thenReturn(mockFileLock);
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void acquire_waitsForOtherProcess() throws Exception {
+        when(mockStorageHelpers.tryLockExchange()).thenReturn(null, null, mockFileLock);
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+
+        await(acquire(lock)).release();
+        verify(mockStorageHelpers, times(3)).tryLockExchange();
+        verify(mockFileLock).close();
+    }
+
+    @Test
+    public void acquire_givesUpAfterTimeout() throws Exception {
+        when(mockStorageHelpers.tryLockExchange()).thenReturn(null);
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+
+        Task<ExchangeLock.Holder> task = awaitCompletion(
+                lock.acquire(DIRECT_EXECUTOR, mScheduler, ExchangeLock.POLL_MILLIS));
+        assertTrue(task.getException() instanceof ExchangeLockTimeoutException);
+        verify(mockStorageHelpers, times(2)).tryLockExchange();
+    }
+
+    @Test
+    public void acquire_letsThreadsOfProcessTakeTurns() throws Exception {
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+
+        Task<ExchangeLock.Holder> first = acquire(lock);
+        Task<ExchangeLock.Holder> second = acquire(lock);
+        assertTrue(first.isComplete());
+        assertFalse(second.isComplete());
+
+        first.getResult().release();
+        await(second).release();
+        verify(mockStorageHelpers, times(2)).tryLockExchange();
+        verify(mockFileLock, times(2)).close();
+    }
+
+    @Test
+    public void acquire_proceedsWhenExchangesCannotBeLocked() throws Exception {
+        when(mockStorageHelpers.tryLockExchange()).thenThrow(new IOException());
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+
+        ExchangeLock.Holder holder = await(acquire(lock));
+        assertNull(holder.getRecordedOutcome(session("auth_token")));
+        holder.recordOutcome(session("auth_token"), 0);
+        verify(mockStorageHelpers, never()).getExchangeOutcome();
+        verify(mockStorageHelpers, never()).putExchangeOutcome(any(String.class));
+        assertFalse(acquire(lock).isComplete());
+        holder.release();
+    }
+
+    @Test
+    public void getRecordedOutcome_returnsOutcomeOfOtherProcess() throws Exception {
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+        givenOtherProcessRecorded(lock, session("auth_token"), 0);
+
+        ExchangeLock.Holder holder = await(acquire(lock));
+        ExchangeLock.RecordedOutcome outcome = holder.getRecordedOutcome(session("auth_token"));
+        assertEquals(MigrationResult.Status.EXCHANGED_IN_OTHER_PROCESS, outcome.mStatus);
+        assertNull(outcome.mException);
+        assertNull(holder.getRecordedOutcome(session("other_auth_token")));
+        holder.release();
+
+        givenOtherProcessRecorded(lock, session("auth_token"), 403);
+        holder = await(acquire(lock));
+        outcome = holder.getRecordedOutcome(session("auth_token"));
+        assertEquals(MigrationResult.Status.REJECTED, outcome.mStatus);
+        assertEquals(403, outcome.mException.getHttpStatusCode());
+        holder.release();
+    }
+
+    @Test
+    public void getRecordedOutcome_ignoresOutcomesOfThisProcess() throws Exception {
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+        ExchangeLock.Holder holder = await(acquire(lock));
+        holder.recordOutcome(session("auth_token"), 0);
+        holder.release();
+        String outcome = captureOutcome().toString();
+        when(mockStorageHelpers.getExchangeOutcome()).thenReturn(outcome);
+
+        holder = await(acquire(lock));
+        assertNull(holder.getRecordedOutcome(session("auth_token")));
+        holder.release();
+    }
+
+    @Test
+    public void getRecordedOutcome_ignoresExpiredOutcomes() throws Exception {
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+        JSONObject outcome = givenOtherProcessRecorded(lock, session("auth_token"), 0);
+        when(mockStorageHelpers.getExchangeOutcome()).thenReturn(outcome
+                .put("at", System.currentTimeMillis() - ExchangeLock.OUTCOME_TTL_MILLIS)
+                .toString());
+
+        ExchangeLock.Holder holder = await(acquire(lock));
+        assertNull(holder.getRecordedOutcome(session("auth_token")));
+        holder.release();
+    }
+
+    @Test
+    public void getRecordedOutcome_forSessionWithoutAuthToken() throws Exception {
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+        givenOtherProcessRecorded(lock, session(null), 400);
+
+        ExchangeLock.Holder holder = await(acquire(lock));
+        ExchangeLock.RecordedOutcome outcome = holder.getRecordedOutcome(session(null));
+        assertEquals(MigrationResult.Status.REJECTED, outcome.mStatus);
+        assertNull(holder.getRecordedOutcome(session("auth_token")));
+        holder.release();
+    }
+
+    @Test
+    public void getRecordedOutcome_ignoresUnreadableOutcomes() throws Exception {
+        when(mockStorageHelpers.getExchangeOutcome()).thenReturn("{");
+        ExchangeLock lock = new ExchangeLock(mockStorageHelpers);
+
+        ExchangeLock.Holder holder = await(acquire(lock));
+        assertNull(holder.getRecordedOutcome(session("auth_token")));
+        holder.release();
+    }
+
+    /**
+     * Records an outcome through the lock, then makes it look like another process recorded it.
+     */
+    @NonNull
+    private JSONObject givenOtherProcessRecorded(@NonNull ExchangeLock lock,
+                                                 @NonNull RedeemableDigitsSession session,
+                                                 int httpStatusCode) throws Exception {
+        ExchangeLock.Holder holder = await(acquire(lock));
+        holder.recordOutcome(session, httpStatusCode);
+        holder.release();
+        JSONObject outcome = captureOutcome().put("pid", Process.myPid() + 1);
+        when(mockStorageHelpers.getExchangeOutcome()).thenReturn(outcome.toString());
+        return outcome;
+    }
+
+    @NonNull
+    private JSONObject captureOutcome() throws Exception {
+        ArgumentCaptor<String> outcome = ArgumentCaptor.forClass(String.class);
+        verify(mockStorageHelpers, atLeastOnce())
+                .putExchangeOutcome(outcome.capture());
+        return new JSONObject(outcome.getValue());
+    }
+
+    @NonNull
+    private static RedeemableDigitsSession session(@Nullable String authToken) {
+        return new RedeemableDigitsSessionBuilder()
+                .setAuthToken(authToken)
+                .setAuthTokenSecret("auth_token_secret")
+                .setConsumerKey("consumer_key")
+                .setConsumerSecret("consumer_secret")
+                .setFabricApiKey("abcdefabcdefabcdefabcdefabcdefabcdefabcd")
+                .build();
+    }
+
+    /** Acquires the lock on the calling thread, with a deadline no test is meant to reach. */
+    @NonNull
+    private Task<ExchangeLock.Holder> acquire(@NonNull ExchangeLock lock) {
+        return lock.acquire(DIRECT_EXECUTOR, mScheduler, TIMEOUT_MILLIS);
+    }
+
+    private static <T> T await(@NonNull Task<T> task) throws InterruptedException {
+        return awaitCompletion(task).getResult();
+    }
+
+    @NonNull
+    private static <T> Task<T> awaitCompletion(@NonNull Task<T> task)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        task.addOnCompleteListener(DIRECT_EXECUTOR, new OnCompleteListener<T>() {
+            @Override
+            public void onComplete(@NonNull Task<T> task) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return task;
+    }
+}
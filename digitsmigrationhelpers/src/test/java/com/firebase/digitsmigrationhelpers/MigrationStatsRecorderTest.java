@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MigrationStatsRecorderTest {
+    private final MigrationStatsRecorder mRecorder = new MigrationStatsRecorder();
+
+    @Test
+    public void snapshot_countsResultsByStatus() {
+        mRecorder.recordResult(MigrationResult.Status.EXCHANGED);
+        mRecorder.recordResult(MigrationResult.Status.EXCHANGED);
+        mRecorder.recordResult(MigrationResult.Status.REJECTED);
+        mRecorder.recordExchangeAttempt();
+
+        MigrationStats stats = mRecorder.snapshot();
+        assertEquals(2, stats.getCount(MigrationResult.Status.EXCHANGED));
+        assertEquals(1, stats.getCount(MigrationResult.Status.REJECTED));
+        assertEquals(0, stats.getCount(MigrationResult.Status.CORRUPT_SESSION));
+        assertEquals(3, stats.getTotalCount());
+        assertEquals(1, stats.getExchangeAttemptCount());
+    }
+
+    @Test
+    public void snapshot_bucketsExchangeLatencies() {
+        mRecorder.recordExchangeLatency(TimeUnit.MILLISECONDS.toNanos(99));
+        mRecorder.recordExchangeLatency(TimeUnit.MILLISECONDS.toNanos(100));
+        mRecorder.recordExchangeLatency(TimeUnit.MINUTES.toNanos(5));
+
+        MigrationStats stats = mRecorder.snapshot();
+        int lastBucket = stats.getExchangeLatencyBucketCount() - 1;
+        assertEquals(100, stats.getExchangeLatencyBucketUpperBoundMillis(0));
+        assertEquals(1, stats.getExchangeLatencyCount(0));
+        assertEquals(1, stats.getExchangeLatencyCount(1));
+        assertEquals(Long.MAX_VALUE, stats.getExchangeLatencyBucketUpperBoundMillis(lastBucket));
+        assertEquals(1, stats.getExchangeLatencyCount(lastBucket));
+    }
+
+    @Test
+    public void snapshot_isNotUpdatedByLaterRecords() {
+        MigrationStats stats = mRecorder.snapshot();
+        mRecorder.recordResult(MigrationResult.Status.NO_SESSION);
+        mRecorder.recordExchangeLatency(0);
+
+        assertEquals(0, stats.getTotalCount());
+        assertEquals(0, stats.getExchangeLatencyCount(0));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RejectedSessionCacheTest {
+    private static final String FABRIC_API_KEY = "abcdefabcdefabcdefabcdefabcdefabcdefabcd";
+
+    @Mock
+    StorageHelpers mockStorageHelpers;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void getRejection_afterRecordRejection() {
+        RejectedSessionCache cache = new RejectedSessionCache(mockStorageHelpers);
+        assertNull(cache.getRejection(session("token", "consumer_key")));
+
+        cache.recordRejection(session("token", "consumer_key"), 403);
+        FirebaseWebRequestException rejection =
+                cache.getRejection(session("token", "consumer_key"));
+        assertNotNull(rejection);
+        assertEquals(403, rejection.getHttpStatusCode());
+        assertTrue(rejection.isSessionRejected());
+        assertNull(cache.getRejection(session("token", "other_consumer_key")));
+        assertNull(cache.getRejection(session("other_token", "consumer_key")));
+    }
+
+    @Test
+    public void recordRejection_persistsHashedKeys() {
+        ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+        new RejectedSessionCache(mockStorageHelpers)
+                .recordRejection(session("token", "consumer_key"), 400);
+        verify(mockStorageHelpers).putRejectedSessionsJson(json.capture());
+        assertFalse(json.getValue().contains("token"));
+
+        when(mockStorageHelpers.getRejectedSessionsJson()).thenReturn(json.getValue());
+        RejectedSessionCache cache = new RejectedSessionCache(mockStorageHelpers);
+        assertEquals(400,
+                cache.getRejection(session("token", "consumer_key")).getHttpStatusCode());
+        cache.getRejection(session("other_token", "consumer_key"));
+        // Once per instance.
+        verify(mockStorageHelpers, times(2)).getRejectedSessionsJson();
+    }
+
+    @Test
+    public void getRejection_ignoresExpiredAndFutureEntries() throws Exception {
+        RejectedSessionCache cache = new RejectedSessionCache(mockStorageHelpers);
+        ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+        cache.recordRejection(session("token", "consumer_key"), 403);
+        verify(mockStorageHelpers).putRejectedSessionsJson(json.capture());
+        JSONObject entries = new JSONObject(json.getValue());
+        String key = entries.keys().next();
+
+        entries.getJSONObject(key).put("at",
+                System.currentTimeMillis() - RejectedSessionCache.TTL_MILLIS);
+        when(mockStorageHelpers.getRejectedSessionsJson()).thenReturn(entries.toString());
+        assertNull(new RejectedSessionCache(mockStorageHelpers)
+                .getRejection(session("token", "consumer_key")));
+
+        entries.getJSONObject(key).put("at", System.currentTimeMillis() + 60000L);
+        when(mockStorageHelpers.getRejectedSessionsJson()).thenReturn(entries.toString());
+        assertNull(new RejectedSessionCache(mockStorageHelpers)
+                .getRejection(session("token", "consumer_key")));
+    }
+
+    @Test
+    public void recordRejection_dropsOldestBeyondMaxEntries() {
+        RejectedSessionCache cache = new RejectedSessionCache(mockStorageHelpers);
+        for (int i = 0; i <= RejectedSessionCache.MAX_ENTRIES; i++) {
+            cache.recordRejection(session("token" + i, "consumer_key"), 403);
+        }
+
+        ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+        verify(mockStorageHelpers, times(RejectedSessionCache.MAX_ENTRIES + 1))
+                .putRejectedSessionsJson(json.capture());
+        when(mockStorageHelpers.getRejectedSessionsJson()).thenReturn(json.getValue());
+        cache = new RejectedSessionCache(mockStorageHelpers);
+        int kept = 0;
+        for (int i = 0; i <= RejectedSessionCache.MAX_ENTRIES; i++) {
+            if (cache.getRejection(session("token" + i, "consumer_key")) != null) {
+                kept++;
+            }
+        }
+        assertEquals(RejectedSessionCache.MAX_ENTRIES, kept);
+    }
+
+    @Test
+    public void getRejection_forSessionWithoutAuthToken() {
+        RejectedSessionCache cache = new RejectedSessionCache(mockStorageHelpers);
+        cache.recordRejection(session("token", "consumer_key"), 403);
+        assertNull(cache.getRejection(session(null, "consumer_key")));
+
+        cache.recordRejection(session(null, "consumer_key"), 400);
+        assertEquals(400, cache.getRejection(session(null, "consumer_key")).getHttpStatusCode());
+    }
+
+    @Test
+    public void getInstance_isShared() {
+        assertSame(RejectedSessionCache.getInstance(mockStorageHelpers),
+                RejectedSessionCache.getInstance(mockStorageHelpers));
+    }
+
+    private static RedeemableDigitsSession session(String authToken, String consumerKey) {
+        return new RedeemableDigitsSessionBuilder()
+                .setAuthToken(authToken)
+                .setAuthTokenSecret("secret")
+                .setConsumerKey(consumerKey)
+                .setConsumerSecret("consumer_secret")
+                .setFabricApiKey(FABRIC_API_KEY)
+                .build();
+    }
+}
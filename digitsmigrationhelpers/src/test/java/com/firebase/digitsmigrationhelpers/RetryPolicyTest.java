@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import com.firebase.digitsmigrationhelpers.internal.FirebaseWebRequestException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RetryPolicyTest {
+    /** Always draws the upper bound of the jitter range. */
+    private static final Random MAX_RANDOM = new Random() {
+        @Override
+        public double nextDouble() {
+            return 1.0;
+        }
+    };
+
+    private static RetryPolicy.Builder builder() {
+        return new RetryPolicy.Builder()
+                .setMaxAttempts(10)
+                .setInitialBackoff(100, TimeUnit.MILLISECONDS)
+                .setMaxBackoff(1, TimeUnit.SECONDS)
+                .setDeadline(1, TimeUnit.MINUTES)
+                .setRandom(MAX_RANDOM);
+    }
+
+    @Test
+    public void retriesOnlyTransientFailures() {
+        RetryPolicy policy = builder().build();
+
+        assertEquals(100, policy.getRetryDelayMillis(1, error(500), 0));
+        assertEquals(100, policy.getRetryDelayMillis(1, error(503), 0));
+        assertEquals(100, policy.getRetryDelayMillis(1, error(429), 0));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(1, error(400), 0));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(1, error(403), 0));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(1, error(404), 0));
+        assertEquals(RetryPolicy.NO_RETRY,
+                policy.getRetryDelayMillis(1, new IllegalStateException(), 0));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(1, null, 0));
+    }
+
+    @Test
+    public void backsOffExponentiallyUpToTheCap() {
+        RetryPolicy policy = builder().build();
+
+        assertEquals(100, policy.getRetryDelayMillis(1, error(500), 0));
+        assertEquals(200, policy.getRetryDelayMillis(2, error(500), 0));
+        assertEquals(400, policy.getRetryDelayMillis(3, error(500), 0));
+        assertEquals(800, policy.getRetryDelayMillis(4, error(500), 0));
+        assertEquals(1000, policy.getRetryDelayMillis(5, error(500), 0));
+        assertEquals(1000, policy.getRetryDelayMillis(9, error(500), 0));
+    }
+
+    @Test
+    public void appliesFullJitter() {
+        RetryPolicy policy = builder().setRandom(new Random(42)).build();
+
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getRetryDelayMillis(3, error(500), 0);
+            assertTrue(String.valueOf(delay), delay >= 0 && delay <= 400);
+        }
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() {
+        RetryPolicy policy = builder().setMaxAttempts(3).build();
+
+        assertEquals(200, policy.getRetryDelayMillis(2, error(500), 0));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(3, error(500), 0));
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        RetryPolicy policy = builder().build();
+
+        assertEquals(5000, policy.getRetryDelayMillis(1,
+                new FirebaseWebRequestException("msg", 503, 5000), 0));
+        // A shorter server delay does not cancel the backoff.
+        assertEquals(100, policy.getRetryDelayMillis(1,
+                new FirebaseWebRequestException("msg", 429, 10), 0));
+    }
+
+    @Test
+    public void stopsAtTheDeadline() {
+        RetryPolicy policy = builder().setDeadline(1, TimeUnit.SECONDS).build();
+
+        assertEquals(100, policy.getRetryDelayMillis(1, error(500), 900));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(1, error(500), 901));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelayMillis(1,
+                new FirebaseWebRequestException("msg", 503, 5000), 0));
+    }
+
+    @Test
+    public void doesNotOverflowWithLargeBackoff() {
+        RetryPolicy policy = builder()
+                .setMaxAttempts(Integer.MAX_VALUE)
+                .setMaxBackoff(Long.MAX_VALUE / 3, TimeUnit.MILLISECONDS)
+                .setDeadline(Long.MAX_VALUE / 2, TimeUnit.MILLISECONDS)
+                .build();
+
+        long delay = policy.getRetryDelayMillis(100, error(500), 0);
+        assertTrue(String.valueOf(delay),
+                delay > Long.MAX_VALUE / 4 && delay <= Long.MAX_VALUE / 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroAttempts() {
+        new RetryPolicy.Builder().setMaxAttempts(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeBackoff() {
+        new RetryPolicy.Builder().setInitialBackoff(-1, TimeUnit.SECONDS);
+    }
+
+    private static FirebaseWebRequestException error(int httpStatusCode) {
+        return new FirebaseWebRequestException("msg", httpStatusCode);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RolloutPolicyTest {
+    private static final int DEVICES = 10000;
+
+    @Test
+    public void includes_isDeterministic() {
+        RolloutPolicy policy = new RolloutPolicy.Builder().setRolloutPercentage(50).build();
+
+        for (long id = 0; id < 100; id++) {
+            assertEquals(policy.includes(id), policy.includes(id));
+            assertEquals(policy.includes(id),
+                    new RolloutPolicy.Builder().setRolloutPercentage(50).build().includes(id));
+        }
+    }
+
+    @Test
+    public void includes_matchesPercentage() {
+        RolloutPolicy policy = new RolloutPolicy.Builder().setRolloutPercentage(10).build();
+        int included = 0;
+        // Sequential ids, as assigned by a backend.
+        for (long id = 850000000000000000L; id < 850000000000000000L + DEVICES; id++) {
+            if (policy.includes(id)) {
+                included++;
+            }
+        }
+        assertTrue(String.valueOf(included), included > 900 && included < 1100);
+    }
+
+    @Test
+    public void includes_raisingPercentageOnlyAddsDevices() {
+        RolloutPolicy smaller = new RolloutPolicy.Builder().setRolloutPercentage(5).build();
+        RolloutPolicy larger = new RolloutPolicy.Builder().setRolloutPercentage(20).build();
+
+        for (long id = 0; id < DEVICES; id++) {
+            assertTrue(!smaller.includes(id) || larger.includes(id));
+        }
+    }
+
+    @Test
+    public void includes_bounds() {
+        RolloutPolicy none = new RolloutPolicy.Builder().setRolloutPercentage(0).build();
+        RolloutPolicy all = new RolloutPolicy.Builder().build();
+
+        for (long id = 0; id < DEVICES; id++) {
+            assertFalse(none.includes(id));
+            assertTrue(all.includes(id));
+        }
+    }
+
+    @Test
+    public void nextStartDelayMillis_isBounded() {
+        Random random = new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.5;
+            }
+        };
+
+        assertEquals(0, new RolloutPolicy.Builder().build().nextStartDelayMillis());
+        assertEquals(30000, new RolloutPolicy.Builder()
+                .setMaxStartDelay(1, TimeUnit.MINUTES)
+                .setRandom(random)
+                .build()
+                .nextStartDelayMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setRolloutPercentage_rejectsOutOfRange() {
+        new RolloutPolicy.Builder().setRolloutPercentage(101);
+    }
+}
@@ -17,8 +17,21 @@ package com.firebase.digitsmigrationhelpers;
 
 import static com.firebase.digitsmigrationhelpers.internal.StorageHelpers.DIGITS_PREF_KEY_ACTIVE_SESSION;
 import static com.firebase.digitsmigrationhelpers.internal.StorageHelpers.DIGITS_SESSION_PREF_FILE_NAME;
+import static com.firebase.digitsmigrationhelpers.internal.StorageHelpers.MIGRATION_PREF_FILE_NAME;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,21 +42,45 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.util.Base64;
 
+import com.firebase.digitsmigrationhelpers.RedeemableDigitsSessionBuilder;
+import com.firebase.digitsmigrationhelpers.internal.RedeemableDigitsSession;
+import com.firebase.digitsmigrationhelpers.internal.ManifestMetadata;
 import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+import com.firebase.digitsmigrationhelpers.internal.UnsignedJwtWriter;
+import com.google.android.gms.tasks.Task;
 
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.annotation.Config;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(manifest = Config.NONE)
 public class StorageHelperTest {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
     @Mock
     private Context mMockContext;
     @Mock
@@ -55,11 +92,19 @@ public class StorageHelperTest {
     @Mock
     PackageManager mMockPackageManager;
     ApplicationInfo mMockApplicationInfo;
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
 
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         mMockApplicationInfo = new ApplicationInfo();
+        ManifestMetadata.reset();
+    }
+
+    @After
+    public void tearDown() {
+        ManifestMetadata.reset();
     }
 
     @Test
@@ -91,24 +136,269 @@ public class StorageHelperTest {
                 .thenReturn(mMockDigitsSharedPrefs);
         when(mMockDigitsSharedPrefs.edit()).thenReturn(mMockEditor);
         when(mMockEditor.clear()).thenReturn(mMockEditor);
+        when(mMockEditor.commit()).thenReturn(true);
 
         StorageHelpers helpers = new StorageHelpers(mMockContext);
         helpers.clearDigitsSession();
         verify(mMockEditor).clear();
-        verify(mMockEditor).apply();
+        verify(mMockEditor).commit();
+        verify(mMockEditor, never()).apply();
+    }
+
+    @Test
+    public void testClearDigitsSessionNotSettledWhenNotWritten() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+        createSessionStore(System.currentTimeMillis() - 10000);
+        when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockDigitsSharedPrefs);
+        when(mMockDigitsSharedPrefs.edit()).thenReturn(mMockEditor);
+        when(mMockEditor.clear()).thenReturn(mMockEditor);
+        when(mMockEditor.commit()).thenReturn(false, true);
+
+        helpers.clearDigitsSession();
+        assertFalse(helpers.isMigrationSettled());
+        helpers.clearDigitsSession();
+        assertTrue(helpers.isMigrationSettled());
+    }
+
+    @Test
+    public void testDigitsSessionJsonCachedUntilChanged() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockDigitsSharedPrefs);
+        when(mMockDigitsSharedPrefs.getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null))
+                .thenReturn("session_json", "new_session_json");
+        ArgumentCaptor<SharedPreferences.OnSharedPreferenceChangeListener> listener =
+                ArgumentCaptor.forClass(SharedPreferences.OnSharedPreferenceChangeListener.class);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        assertEquals("session_json", helpers.getDigitsSessionJson());
+        assertTrue(helpers.hasDigitsSession());
+        verify(mMockDigitsSharedPrefs, times(1)).getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null);
+
+        verify(mMockDigitsSharedPrefs).registerOnSharedPreferenceChangeListener(
+                listener.capture());
+        listener.getValue().onSharedPreferenceChanged(mMockDigitsSharedPrefs, "unrelated_key");
+        assertEquals("session_json", helpers.getDigitsSessionJson());
+        listener.getValue().onSharedPreferenceChanged(mMockDigitsSharedPrefs,
+                DIGITS_PREF_KEY_ACTIVE_SESSION);
+        assertEquals("new_session_json", helpers.getDigitsSessionJson());
+    }
+
+    @Test
+    public void testClearDigitsSessionInvalidatesCache() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockDigitsSharedPrefs);
+        when(mMockDigitsSharedPrefs.getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null))
+                .thenReturn("session_json", (String) null);
+        when(mMockDigitsSharedPrefs.edit()).thenReturn(mMockEditor);
+        when(mMockEditor.clear()).thenReturn(mMockEditor);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        assertTrue(helpers.hasDigitsSession());
+        helpers.putParsedDigitsSession("session_json", new RedeemableDigitsSessionBuilder());
+        helpers.clearDigitsSession();
+        assertFalse(helpers.hasDigitsSession());
+        assertNull(helpers.getParsedDigitsSession("session_json"));
     }
 
     @Test
-    public void testGetUnsignedJWT() throws JSONException {
-        String expectedJWT = "eyJhbGciOiJub25lIn0=.eyJrZXkiOiJ2YWx1ZSJ9\n.";
+    public void testParsedDigitsSessionKeptForActiveSession() {
         when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
         when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
                 .thenReturn(mMockDigitsSharedPrefs);
-        JSONObject jsonObject = new JSONObject();
-        jsonObject.put("key", "value");
+        when(mMockDigitsSharedPrefs.getString(DIGITS_PREF_KEY_ACTIVE_SESSION, null))
+                .thenReturn("session_json");
+        RedeemableDigitsSessionBuilder parsed = new RedeemableDigitsSessionBuilder();
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        helpers.putParsedDigitsSession("session_json", parsed);
+        assertNull("Nothing is cached before the session is read",
+                helpers.getParsedDigitsSession("session_json"));
+
+        helpers.getDigitsSessionJson();
+        helpers.putParsedDigitsSession("other_json", parsed);
+        assertNull(helpers.getParsedDigitsSession("other_json"));
+        helpers.putParsedDigitsSession("session_json", parsed);
+        assertSame(parsed, helpers.getParsedDigitsSession("session_json"));
+    }
+
+    @Test
+    public void testClearDigitsSessionAsyncMergesQueuedClears() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockDigitsSharedPrefs);
+        when(mMockDigitsSharedPrefs.edit()).thenReturn(mMockEditor);
+        when(mMockEditor.clear()).thenReturn(mMockEditor);
+        when(mMockEditor.commit()).thenReturn(true);
+        final List<Runnable> queued = new ArrayList<>();
+        Executor queueingExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                queued.add(command);
+            }
+        };
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        Task<Void> first = helpers.clearDigitsSessionAsync(queueingExecutor);
+        assertSame(first, helpers.clearDigitsSessionAsync(queueingExecutor));
+        assertEquals(1, queued.size());
+        assertFalse(first.isComplete());
+
+        queued.remove(0).run();
+        assertTrue(first.isSuccessful());
+        verify(mMockEditor).commit();
+        verify(mMockEditor, never()).apply();
+
+        assertNotSame(first, helpers.clearDigitsSessionAsync(queueingExecutor));
+        assertEquals(1, queued.size());
+    }
+
+    @Test
+    public void testClearDigitsSessionAsyncFailsWhenNotWritten() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockDigitsSharedPrefs);
+        when(mMockDigitsSharedPrefs.edit()).thenReturn(mMockEditor);
+        when(mMockEditor.clear()).thenReturn(mMockEditor);
+        when(mMockEditor.commit()).thenReturn(false);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        Task<Void> task = helpers.clearDigitsSessionAsync(DIRECT_EXECUTOR);
+        assertTrue(task.isComplete());
+        assertTrue(task.getException() instanceof IOException);
+    }
+
+    @Test
+    public void testExchangeLatencyAverageKeptOutOfSessionStore() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(MIGRATION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockSharedPrefs);
+        when(mMockSharedPrefs.getLong(anyString(), eq(0L))).thenReturn(0L, 420L);
+        when(mMockSharedPrefs.edit()).thenReturn(mMockEditor);
+        when(mMockEditor.putLong(anyString(), anyLong())).thenReturn(mMockEditor);
+        when(mMockEditor.commit()).thenReturn(true);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        assertEquals(0L, helpers.getExchangeLatencyAverageMillis());
+        helpers.putExchangeLatencyAverageMillis(420L);
+        verify(mMockEditor).putLong(anyString(), eq(420L));
+        verify(mMockEditor).commit();
+        verify(mMockEditor, never()).apply();
+        assertEquals(420L, helpers.getExchangeLatencyAverageMillis());
+        verify(mMockContext, never()).getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void testPutRejectedSessionsJsonCommits() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(MIGRATION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockSharedPrefs);
+        when(mMockSharedPrefs.edit()).thenReturn(mMockEditor);
+        when(mMockEditor.putString(anyString(), anyString())).thenReturn(mMockEditor);
+        when(mMockEditor.commit()).thenReturn(true);
+
+        new StorageHelpers(mMockContext).putRejectedSessionsJson("{}");
+        verify(mMockEditor).putString(anyString(), eq("{}"));
+        verify(mMockEditor).commit();
+        verify(mMockEditor, never()).apply();
+    }
+
+    @Test
+    public void testConstructorDoesNotLoadSessionStore() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+
+        new StorageHelpers(mMockContext);
+        verify(mMockContext, never()).getSharedPreferences(anyString(), anyInt());
+    }
+
+    @Test
+    public void testMigrationSettledWithoutSessionStore() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+
+        assertTrue(helpers.isMigrationSettled());
+        verify(mMockContext, never()).getSharedPreferences(anyString(), anyInt());
+    }
+
+    @Test
+    public void testMigrationNotSettledWithSessionStore() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+        createSessionStore(1000000L);
+
+        assertFalse(helpers.isMigrationSettled());
+    }
+
+    @Test
+    public void testMarkMigrationSettled() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+        createSessionStore(1000000L);
+
+        helpers.markMigrationSettled();
+        assertTrue(helpers.isMigrationSettled());
+        verify(mMockContext, never()).getSharedPreferences(anyString(), anyInt());
+    }
+
+    @Test
+    public void testMigrationNotSettledAfterSessionStoreChanged() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+        File sessionStore = createSessionStore(1000000L);
+        helpers.markMigrationSettled();
+
+        // e.g. restored from a backup, or written again by the Digits SDK
+        sessionStore.setLastModified(System.currentTimeMillis() + 60000L);
+        assertFalse(helpers.isMigrationSettled());
+    }
+
+    @Test
+    public void testMigrationNotSettledWithoutDataDir() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getApplicationInfo()).thenReturn(mMockApplicationInfo);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        assertFalse(helpers.isMigrationSettled());
+    }
+
+    @Test
+    public void testTryLockExchangeAfterRelease() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+
+        Closeable lock = helpers.tryLockExchange();
+        assertNotNull(lock);
+        lock.close();
+        lock = helpers.tryLockExchange();
+        assertNotNull(lock);
+        lock.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testTryLockExchangeWithoutFilesDir() throws Exception {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+
+        new StorageHelpers(mMockContext).tryLockExchange();
+    }
+
+    @Test
+    public void testExchangeOutcome() throws Exception {
+        StorageHelpers helpers = new StorageHelpers(mockDataDirs());
+        assertNull(helpers.getExchangeOutcome());
+
+        helpers.putExchangeOutcome("{\"session\":\"a\"}");
+        helpers.putExchangeOutcome("{\"session\":\"b\"}");
+        assertEquals("{\"session\":\"b\"}", helpers.getExchangeOutcome());
+        verify(mMockContext, never()).getSharedPreferences(anyString(), anyInt());
+    }
+
+    @Test
+    public void testGetUnsignedJWT() {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        RedeemableDigitsSession session = new RedeemableDigitsSession(112L, "5551234567",
+                "a@b.com", false, "auth_token", "auth_token_secret", "consumer_key",
+                "consumer_secret", "fabric_api_key");
 
         StorageHelpers helpers = new StorageHelpers(mMockContext);
-        assertEquals(expectedJWT, helpers.getUnsignedJWT(jsonObject));
+        assertEquals(new UnsignedJwtWriter().write(session), helpers.getUnsignedJWT(session));
     }
 
     @Test
@@ -129,4 +419,145 @@ public class StorageHelperTest {
         StorageHelpers helpers = new StorageHelpers(mMockContext);
         assertEquals("value", helpers.getApiKeyFromManifest(mMockContext, "api_key"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetManifestMetadataReadsPackageManagerOnce()
+            throws NameNotFoundException {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getSharedPreferences(DIGITS_SESSION_PREF_FILE_NAME, Context.MODE_PRIVATE))
+                .thenReturn(mMockDigitsSharedPrefs);
+        when(mMockContext.getPackageName()).thenReturn("package_name");
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockPackageManager.getApplicationInfo("package_name", PackageManager.GET_META_DATA))
+                .thenReturn(mMockApplicationInfo);
+
+        Bundle bundle = new Bundle();
+        bundle.putString(StorageHelpers.DIGITS_CONSUMER_KEY_KEY, "consumer_key");
+        bundle.putString(StorageHelpers.DIGITS_CONSUMER_SECRET_KEY, "consumer_secret");
+        bundle.putString(StorageHelpers.FABRIC_API_KEY_KEY, "fabric_api_key");
+        mMockApplicationInfo.metaData = bundle;
+
+        StorageHelpers first = new StorageHelpers(mMockContext);
+        StorageHelpers second = new StorageHelpers(mMockContext);
+        ManifestMetadata metadata = first.getManifestMetadata(mMockContext);
+        assertEquals("consumer_key", metadata.getConsumerKey());
+        assertEquals("consumer_secret", metadata.getConsumerSecret());
+        assertEquals("fabric_api_key", metadata.getFabricApiKey());
+        assertSame(metadata, first.getManifestMetadata(mMockContext));
+        assertSame(metadata, second.getManifestMetadata(mMockContext));
+
+        verify(mMockPackageManager, times(1))
+                .getApplicationInfo("package_name", PackageManager.GET_META_DATA);
+    }
+
+    @Test
+    public void testGetManifestMetadataRetriesFailedLookup() throws NameNotFoundException {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getPackageName()).thenReturn("package_name");
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        Bundle bundle = new Bundle();
+        bundle.putString(StorageHelpers.DIGITS_CONSUMER_KEY_KEY, "consumer_key");
+        mMockApplicationInfo.metaData = bundle;
+        when(mMockPackageManager.getApplicationInfo("package_name", PackageManager.GET_META_DATA))
+                .thenThrow(new RuntimeException("Package manager has died"))
+                .thenReturn(mMockApplicationInfo);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        assertNull(helpers.getManifestMetadata(mMockContext).getConsumerKey());
+        assertEquals("consumer_key", helpers.getManifestMetadata(mMockContext).getConsumerKey());
+        helpers.getManifestMetadata(mMockContext);
+
+        verify(mMockPackageManager, times(2))
+                .getApplicationInfo("package_name", PackageManager.GET_META_DATA);
+    }
+
+    @Test
+    public void testGetManifestMetadataWithoutMetaData() throws NameNotFoundException {
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getPackageName()).thenReturn("package_name");
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockPackageManager.getApplicationInfo("package_name", PackageManager.GET_META_DATA))
+                .thenReturn(mMockApplicationInfo);
+
+        StorageHelpers helpers = new StorageHelpers(mMockContext);
+        ManifestMetadata metadata = helpers.getManifestMetadata(mMockContext);
+        assertNull(metadata.getConsumerKey());
+        assertNull(metadata.getConsumerSecret());
+        assertNull(metadata.getFabricApiKey());
+        helpers.getManifestMetadata(mMockContext);
+
+        verify(mMockPackageManager, times(1))
+                .getApplicationInfo("package_name", PackageManager.GET_META_DATA);
+    }
+
+    @Test
+    public void testUnsignedJwtWriter() throws Exception {
+        RedeemableDigitsSession session = new RedeemableDigitsSession(112L, "5551234567",
+                "a@b.com", false, "auth_token", "auth_token_secret", "consumer_key",
+                "consumer_secret", "fabric_api_key");
+
+        String jwt = new UnsignedJwtWriter().write(session);
+        assertTrue(jwt.startsWith("eyJhbGciOiJub25lIn0."));
+        assertTrue(jwt.endsWith("."));
+        assertFalse(jwt.contains("\n"));
+        assertFalse(jwt.contains("="));
+        assertEquals(legacyPayload(session), decodePayload(jwt));
+    }
+
+    @Test
+    public void testUnsignedJwtWriterWithSpecialCharacters() throws Exception {
+        UnsignedJwtWriter writer = new UnsignedJwtWriter();
+        StringBuilder longToken = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longToken.append((char) ('a' + i % 26));
+        }
+        RedeemableDigitsSession[] sessions = {
+                new RedeemableDigitsSession(Long.MIN_VALUE, "+1 \"555\" \\ / \b\f\n\r\t\u0001",
+                        "caf\u00e9@\u4f8b\u5b50.com", true, "\ud83d\ude00", "\ud83d",
+                        "\u007f\u0080\u07ff\u0800\uffff", "x", "y"),
+                new RedeemableDigitsSession(null, null, null, null, longToken.toString(),
+                        "s", "k", "c", "f"),
+                new RedeemableDigitsSession(-1L, "", "", null, "a", "ab", "abc", "", "a"),
+                new RedeemableDigitsSession(Long.MAX_VALUE, "1", null, false, "t", "s", "k",
+                        "c", "f"),
+        };
+        // Reusing the same writer across sizes must not leak bytes between tokens.
+        for (RedeemableDigitsSession session : sessions) {
+            assertEquals(legacyPayload(session), decodePayload(writer.write(session)));
+        }
+    }
+
+    private Context mockDataDirs() throws Exception {
+        mMockApplicationInfo.dataDir = mTemporaryFolder.newFolder("data").getPath();
+        when(mMockContext.getApplicationContext()).thenReturn(mMockContext);
+        when(mMockContext.getApplicationInfo()).thenReturn(mMockApplicationInfo);
+        when(mMockContext.getNoBackupFilesDir())
+                .thenReturn(mTemporaryFolder.newFolder("data", "no_backup"));
+        return mMockContext;
+    }
+
+    private File createSessionStore(long lastModified) throws Exception {
+        File sessionStore = new File(new File(mMockApplicationInfo.dataDir, "shared_prefs"),
+                DIGITS_SESSION_PREF_FILE_NAME + ".xml");
+        assertTrue(sessionStore.getParentFile().mkdirs());
+        assertTrue(sessionStore.createNewFile());
+        assertTrue(sessionStore.setLastModified(lastModified));
+        return sessionStore;
+    }
+
+    /**
+     * The payload as it was sent before, through JSONObject and String#getBytes.
+     */
+    private static String legacyPayload(RedeemableDigitsSession session) throws Exception {
+        return new String(session.getPayload().toString().getBytes("UTF-8"), "UTF-8");
+    }
+
+    private static String decodePayload(String jwt) throws Exception {
+        String[] segments = jwt.split("\\.");
+        assertEquals(2, segments.length);
+        assertEquals("{\"alg\":\"none\"}", new String(Base64.decode(segments[0],
+                Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP), "UTF-8"));
+        return new String(Base64.decode(segments[1],
+                Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP), "UTF-8");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.firebase.digitsmigrationhelpers;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.firebase.digitsmigrationhelpers.internal.StorageHelpers;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.auth.FirebaseAuth;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WeakKeyedRegistryTest {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    /** Value that, like {@link AuthMigrator}, only refers to its key weakly. */
+    private static final class Value {
+        final WeakReference<Object> mKey;
+
+        Value(Object key) {
+            mKey = new WeakReference<>(key);
+        }
+    }
+
+    private final WeakKeyedRegistry<Object, Value> mRegistry =
+            new WeakKeyedRegistry<>(new WeakKeyedRegistry.Factory<Object, Value>() {
+                @NonNull
+                @Override
+                public Value create(@NonNull Object key) {
+                    return new Value(key);
+                }
+            });
+
+    @Test
+    public void get_returnsSameValueForSameKey() {
+        Object key = new Object();
+
+        Value value = mRegistry.get(key);
+        assertSame(value, mRegistry.get(key));
+        assertSame(key, value.mKey.get());
+        assertEquals(1, mRegistry.size());
+    }
+
+    @Test
+    public void get_comparesKeysByIdentity() {
+        String key = new String("app");
+        String equalKey = new String("app");
+
+        assertNotSame(mRegistry.get(key), mRegistry.get(equalKey));
+        assertEquals(2, mRegistry.size());
+    }
+
+    @Test
+    public void get_releasesCollectedKeys() throws InterruptedException {
+        Object retained = new Object();
+        Value retainedValue = mRegistry.get(retained);
+        WeakReference<Value> collectedValue = registerUnreachableKey();
+
+        for (int i = 0; i < 50 && mRegistry.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, mRegistry.size());
+        assertSame(retainedValue, mRegistry.get(retained));
+
+        for (int i = 0; i < 50 && collectedValue.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(collectedValue.get());
+    }
+
+    @Test
+    public void get_releasesAuthMigratorOfCollectedApp() throws InterruptedException {
+        final StorageHelpers storageHelpers = mock(StorageHelpers.class);
+        final FirebaseAuth firebaseAuth = mock(FirebaseAuth.class);
+        final Context context = mock(Context.class);
+        WeakKeyedRegistry<FirebaseApp, AuthMigrator> registry = new WeakKeyedRegistry<>(
+                new WeakKeyedRegistry.Factory<FirebaseApp, AuthMigrator>() {
+                    @NonNull
+                    @Override
+                    public AuthMigrator create(@NonNull FirebaseApp app) {
+                        return new AuthMigrator(app, storageHelpers, firebaseAuth,
+                                DIRECT_EXECUTOR);
+                    }
+                });
+        WeakReference<AuthMigrator> migrator = registerUnreachableApp(registry, context);
+
+        for (int i = 0; i < 50 && (registry.size() > 0 || migrator.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, registry.size());
+        assertNull(migrator.get());
+    }
+
+    /**
+     * Registers the migrator of a deleted app, which only the registry keeps.
+     */
+    private static WeakReference<AuthMigrator> registerUnreachableApp(
+            @NonNull WeakKeyedRegistry<FirebaseApp, AuthMigrator> registry,
+            @NonNull Context context) {
+        FirebaseApp app = mock(FirebaseApp.class);
+        when(app.getApplicationContext()).thenReturn(context);
+        WeakReference<AuthMigrator> migrator = new WeakReference<>(registry.get(app));
+        assertEquals(1, registry.size());
+        // Mockito remembers the last invocation, move it off the app.
+        context.getPackageName();
+        return migrator;
+    }
+
+    private WeakReference<Value> registerUnreachableKey() {
+        return new WeakReference<>(mRegistry.get(new Object()));
+    }
+}